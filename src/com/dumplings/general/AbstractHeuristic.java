@@ -4,14 +4,29 @@ import util.statemachine.StateMachine;
 
 public abstract class AbstractHeuristic implements TimeoutHandler, PlayerHeuristic {
 	protected boolean stopExecution;
+	/* Machine whose depth charges a timeout stops as well, if any */
+	private DumplingPropNetStateMachine depthChargeMachine = null;
 	
 	public void reset() {
 		stopExecution = false;
+		if (depthChargeMachine != null)
+			depthChargeMachine.setDepthChargesStopped(false);
 	}
 	public void setStateMachine(StateMachine stateMachine) { }	
 	@Override
 	public void onTimeout() {
 		stopExecution = true;
+		if (depthChargeMachine != null)
+			depthChargeMachine.setDepthChargesStopped(true);
+	}
+	
+	/*
+	 * For heuristics that run depth charges on stateMachine, so that a
+	 * timeout also cuts off the charge in progress
+	 */
+	protected void stopDepthChargesOnTimeout(StateMachine stateMachine) {
+		if (stateMachine instanceof DumplingPropNetStateMachine)
+			depthChargeMachine = (DumplingPropNetStateMachine) stateMachine;
 	}
 	
 	public void cleanup() {};
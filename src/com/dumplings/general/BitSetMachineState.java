@@ -0,0 +1,99 @@
+package com.dumplings.general;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import util.gdl.grammar.GdlSentence;
+import util.statemachine.MachineState;
+
+/**
+ * A MachineState backed by a bit vector over the base propositions of a
+ * DumplingPropNetStateMachine. Bit i is set iff the i'th base proposition (in
+ * the order fixed at initialize()) is true. The GDL sentences are only built
+ * when somebody outside the state machine asks for them.
+ */
+public class BitSetMachineState extends MachineState {
+	/** The truth values of the base propositions, 64 per word */
+	private final long[] bits;
+	/** Base sentence for every bit, shared by all states of one state machine */
+	private final GdlSentence[] sentences;
+	/** Zobrist key, the XOR of Canonicalizer.sentenceKey() over the contents */
+	private final long key;
+	private final int hash;
+	private Set<GdlSentence> contents = null;
+
+	public BitSetMachineState(long[] bits, GdlSentence[] sentences, long key) {
+		this.bits = bits;
+		this.sentences = sentences;
+		this.key = key;
+		this.hash = (int) (key ^ (key >>> 32));
+	}
+
+	public static int numWords(int numBits) {
+		return (numBits + 63) >>> 6;
+	}
+
+	public long[] getBits() {
+		return bits;
+	}
+
+	public GdlSentence[] getSentences() {
+		return sentences;
+	}
+
+	public long getKey() {
+		return key;
+	}
+
+	public boolean get(int index) {
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+
+	@Override
+	public Set<GdlSentence> getContents() {
+		if (contents == null) {
+			Set<GdlSentence> sentenceSet = new HashSet<GdlSentence>();
+			for (int w = 0; w < bits.length; w++) {
+				long word = bits[w];
+				while (word != 0) {
+					int bit = Long.numberOfTrailingZeros(word);
+					sentenceSet.add(sentences[(w << 6) + bit]);
+					word &= word - 1;
+				}
+			}
+			contents = sentenceSet;
+		}
+		return contents;
+	}
+
+	@Override
+	public MachineState clone() {
+		return new BitSetMachineState(bits.clone(), sentences, key);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	/**
+	 * Only states of the same state machine (or its copies and factors) are
+	 * equal, as other MachineStates hash by their contents, not by key.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (o instanceof BitSetMachineState) {
+			BitSetMachineState other = (BitSetMachineState) o;
+			return other.sentences == sentences && other.key == key && Arrays.equals(other.bits, bits);
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return getContents().toString();
+	}
+}
@@ -0,0 +1,654 @@
+package com.dumplings.general;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import util.propnet.architecture.Component;
+import util.propnet.architecture.PropNet;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Constant;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+
+/**
+ * A flattened copy of a PropNet. Every component gets an index, and the
+ * structure needed for propagation (gate types and inputs) is stored in
+ * primitive arrays so that evaluating the network is a single loop over
+ * the topological order instead of virtual calls through the Component
+ * objects.
+ *
+ * The structure is immutable once built and can be shared, see copy(). Each
+ * instance owns its truth values, which can either be recomputed from
+ * scratch (propagate()) or updated differentially: set() the sources that
+ * changed and call propagateChanges(), which only visits the components
+ * downstream of a change. And/Or gates keep a count of their true inputs so
+ * that such an update is constant time per edge. A third way is to compute
+ * only the cone of the components that are actually read, see getCone().
+ * The differential update can be limited to a cone as well, leaving the
+ * other changes queued until they are read.
+ *
+ * For batched simulation every instance can also hold 64 independent values
+ * per component, one per bit of a long, see propagateLanes(). For those the
+ * order is split into the components that do not depend on the input
+ * propositions and the rest, so that a simulation step can read the legal
+ * moves and then compute the next state without a second full pass.
+ *
+ * Optionally a PropNetEvaluator generated for this structure (see
+ * PropNetCodeGenerator) replaces the interpreted loop in propagate().
+ */
+public class CompiledPropNet {
+	/* Component types */
+	public static final byte SOURCE = 0;	// base, input and init propositions, set from outside
+	public static final byte VIEW = 1;		// propositions and transitions, copy their single input
+	public static final byte AND = 2;
+	public static final byte OR = 3;
+	public static final byte NOT = 4;
+	public static final byte TRUE = 5;
+	public static final byte FALSE = 6;
+
+	/* Parts of the order for propagateLanes(int) */
+	public static final int STATE_PART = 0;
+	public static final int MOVE_PART = 1;
+
+	private final Map<Component, Integer> indices;
+	private final Component[] components;
+	private final byte[] types;
+	/* The inputs of component c are inputs[inputOffsets[c]] .. inputs[inputOffsets[c + 1] - 1] */
+	private final int[] inputOffsets;
+	private final int[] inputs;
+	/* Same layout for the components reading c */
+	private final int[] outputOffsets;
+	private final int[] outputs;
+	/* All non-source, non-constant components in topological order */
+	private final int[] order;
+	/* Position of each component in order */
+	private final int[] positions;
+	/* order split into STATE_PART and MOVE_PART */
+	private final int[][] parts;
+	/* Generated replacement for the loop in propagate(), if any */
+	private PropNetEvaluator evaluator = null;
+
+	/* Per instance values */
+	private final boolean[] values;
+	/* Number of true inputs of every And/Or, only valid if countsValid */
+	private final int[] trueInputs;
+	private boolean countsValid = false;
+	/* Components waiting to be recomputed, a min-heap on their position */
+	private final int[] heap;
+	private final boolean[] queued;
+	private int heapSize = 0;
+	/* Scratch space for propagateChanges(int[], boolean[]) */
+	private final int[] deferred;
+	/* Generation in which propagate(int[]) last computed each component */
+	private int[] computed = null;
+	private int generation = 1;
+	/* Per instance 64 lane values, allocated on first use */
+	private long[] lanes = null;
+
+	public CompiledPropNet(PropNet propNet, Collection<Proposition> sources) {
+		indices = new HashMap<Component, Integer>();
+		components = propNet.getComponents().toArray(new Component[0]);
+		for (int i = 0; i < components.length; i++)
+			indices.put(components[i], i);
+
+		types = new byte[components.length];
+		for (Proposition p : sources)
+			types[indices.get(p)] = SOURCE;
+
+		inputOffsets = new int[components.length + 1];
+		int numInputs = 0;
+		for (int i = 0; i < components.length; i++) {
+			Component c = components[i];
+			inputOffsets[i] = numInputs;
+			if (sources.contains(c))
+				continue;
+			if (c instanceof Proposition)
+				types[i] = c.getInputs().isEmpty() ? FALSE : VIEW;
+			else if (c instanceof Transition)
+				types[i] = VIEW;
+			else if (c instanceof And)
+				types[i] = AND;
+			else if (c instanceof Or)
+				types[i] = OR;
+			else if (c instanceof Not)
+				types[i] = NOT;
+			else if (c instanceof Constant)
+				types[i] = c.getValue() ? TRUE : FALSE;
+			if (types[i] != TRUE && types[i] != FALSE)
+				numInputs += c.getInputs().size();
+		}
+		inputOffsets[components.length] = numInputs;
+
+		inputs = new int[numInputs];
+		for (int i = 0; i < components.length; i++) {
+			int j = inputOffsets[i];
+			if (j == inputOffsets[i + 1])
+				continue;
+			for (Component input : components[i].getInputs())
+				inputs[j++] = indices.get(input);
+		}
+
+		order = computeOrder();
+		positions = new int[components.length];
+		for (int i = 0; i < order.length; i++)
+			positions[order[i]] = i;
+
+		outputOffsets = new int[components.length + 1];
+		for (int c : inputs)
+			outputOffsets[c + 1]++;
+		for (int i = 0; i < components.length; i++)
+			outputOffsets[i + 1] += outputOffsets[i];
+		outputs = new int[inputs.length];
+		int[] fill = new int[components.length];
+		for (int i = 0; i < components.length; i++) {
+			for (int j = inputOffsets[i]; j < inputOffsets[i + 1]; j++) {
+				int input = inputs[j];
+				outputs[outputOffsets[input] + fill[input]++] = i;
+			}
+		}
+
+		parts = computeParts(getIndices(propNet.getInputPropositions().values()));
+
+		values = newValues();
+		trueInputs = new int[components.length];
+		heap = new int[components.length];
+		queued = new boolean[components.length];
+		deferred = new int[components.length];
+	}
+
+	/*
+	 * Shares the structure of source, with values of its own
+	 */
+	private CompiledPropNet(CompiledPropNet source) {
+		indices = source.indices;
+		components = source.components;
+		types = source.types;
+		inputOffsets = source.inputOffsets;
+		inputs = source.inputs;
+		outputOffsets = source.outputOffsets;
+		outputs = source.outputs;
+		order = source.order;
+		positions = source.positions;
+		parts = source.parts;
+		evaluator = source.evaluator;
+
+		values = newValues();
+		trueInputs = new int[components.length];
+		heap = new int[components.length];
+		queued = new boolean[components.length];
+		deferred = new int[components.length];
+	}
+
+	/**
+	 * Returns a CompiledPropNet with the same structure as this one but its
+	 * own values, all false apart from the constants.
+	 */
+	public CompiledPropNet copy() {
+		return new CompiledPropNet(this);
+	}
+
+	/**
+	 * Makes propagate() run the given generated code. Only affects this
+	 * instance and copies made from it afterwards.
+	 */
+	public void setEvaluator(PropNetEvaluator evaluator) {
+		this.evaluator = evaluator;
+	}
+
+	public boolean hasEvaluator() {
+		return evaluator != null;
+	}
+
+	/*
+	 * Depth first post-order over the inputs, so that every component comes
+	 * after everything it reads. Iterative, since chains in big games are
+	 * deeper than the call stack.
+	 */
+	private int[] computeOrder() {
+		List<Integer> result = new ArrayList<Integer>(components.length);
+		boolean[] done = new boolean[components.length];
+		int[] stack = new int[components.length];
+		int[] next = new int[components.length];
+
+		for (int root = 0; root < components.length; root++) {
+			if (done[root])
+				continue;
+			int top = 0;
+			stack[0] = root;
+			next[0] = inputOffsets[root];
+			done[root] = true;
+			while (top >= 0) {
+				int c = stack[top];
+				if (next[top] < inputOffsets[c + 1]) {
+					int input = inputs[next[top]++];
+					if (!done[input]) {
+						done[input] = true;
+						top++;
+						stack[top] = input;
+						next[top] = inputOffsets[input];
+					}
+				} else {
+					if (isComputed(c))
+						result.add(c);
+					top--;
+				}
+			}
+		}
+
+		int[] array = new int[result.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = result.get(i);
+		return array;
+	}
+
+	/*
+	 * Splits order into the components that do not depend on moveSources and
+	 * the ones that do, both in topological order
+	 */
+	private int[][] computeParts(int[] moveSources) {
+		boolean[] dependent = new boolean[components.length];
+		for (int source : moveSources)
+			dependent[source] = true;
+		int numDependent = 0;
+		for (int c : order) {
+			for (int j = inputOffsets[c]; j < inputOffsets[c + 1] && !dependent[c]; j++)
+				dependent[c] = dependent[inputs[j]];
+			if (dependent[c])
+				numDependent++;
+		}
+
+		int[][] parts = { new int[order.length - numDependent], new int[numDependent] };
+		int[] sizes = new int[2];
+		for (int c : order) {
+			int part = dependent[c] ? MOVE_PART : STATE_PART;
+			parts[part][sizes[part]++] = c;
+		}
+		return parts;
+	}
+
+	private boolean isComputed(int c) {
+		return types[c] != SOURCE && types[c] != TRUE && types[c] != FALSE;
+	}
+
+	private boolean[] newValues() {
+		boolean[] values = new boolean[components.length];
+		for (int i = 0; i < components.length; i++)
+			values[i] = types[i] == TRUE;
+		return values;
+	}
+
+	/**
+	 * The value vector, indexed like the components. Sources may be written
+	 * directly before a call to propagate(), otherwise go through set().
+	 */
+	public boolean[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Recomputes the value of every component from the sources.
+	 */
+	public void propagate() {
+		if (evaluator != null) {
+			evaluator.propagate(values);
+			countsValid = false;
+			return;
+		}
+
+		for (int c : order)
+			values[c] = compute(c);
+		countsValid = false;
+	}
+
+	private boolean compute(int c) {
+		int from = inputOffsets[c], to = inputOffsets[c + 1];
+		switch (types[c]) {
+		case VIEW:
+			return values[inputs[from]];
+		case AND:
+			for (int j = from; j < to; j++) {
+				if (!values[inputs[j]])
+					return false;
+			}
+			return true;
+		case OR:
+			for (int j = from; j < to; j++) {
+				if (values[inputs[j]])
+					return true;
+			}
+			return false;
+		default: // NOT
+			return !values[inputs[from]];
+		}
+	}
+
+	/**
+	 * The components targets depend on, back to the sources, in topological
+	 * order. Passed to propagate(int[]) they bring targets up to date.
+	 */
+	public int[] getCone(int[] targets) {
+		boolean[] inCone = new boolean[components.length];
+		int[] stack = new int[components.length];
+		int top = 0;
+		for (int t : targets) {
+			if (!inCone[t]) {
+				inCone[t] = true;
+				stack[top++] = t;
+			}
+		}
+		while (top > 0) {
+			int c = stack[--top];
+			for (int j = inputOffsets[c]; j < inputOffsets[c + 1]; j++) {
+				if (!inCone[inputs[j]]) {
+					inCone[inputs[j]] = true;
+					stack[top++] = inputs[j];
+				}
+			}
+		}
+
+		int size = 0;
+		for (int c : order) {
+			if (inCone[c])
+				stack[size++] = c;
+		}
+		int[] cone = new int[size];
+		System.arraycopy(stack, 0, cone, 0, size);
+		return cone;
+	}
+
+	/**
+	 * Marks the components of cone, for propagateChanges(int[], boolean[]).
+	 */
+	public boolean[] getConeMask(int[] cone) {
+		boolean[] inCone = new boolean[components.length];
+		for (int c : cone)
+			inCone[c] = true;
+		return inCone;
+	}
+
+	/**
+	 * Computes the components of cone (see getCone()) that have not been
+	 * computed since the last invalidate(). Cones that overlap therefore
+	 * share the work.
+	 */
+	public void propagate(int[] cone) {
+		if (computed == null)
+			computed = new int[components.length];
+		final int[] computed = this.computed;
+		final int generation = this.generation;
+		final boolean[] values = this.values;
+		for (int c : cone) {
+			if (computed[c] != generation) {
+				values[c] = compute(c);
+				computed[c] = generation;
+			}
+		}
+	}
+
+	/**
+	 * Marks every component as out of date for propagate(int[]), to be called
+	 * after the sources have been written directly.
+	 */
+	public void invalidate() {
+		if (++generation == 0) {
+			// Wrapped around, old marks could look current
+			if (computed != null)
+				Arrays.fill(computed, 0);
+			generation = 1;
+		}
+		countsValid = false;
+	}
+
+	/**
+	 * The 64 lane value vector, indexed like the components. Bit l of every
+	 * entry belongs to lane l; sources are written directly.
+	 */
+	public long[] getLanes() {
+		if (lanes == null) {
+			lanes = new long[components.length];
+			for (int i = 0; i < components.length; i++)
+				lanes[i] = types[i] == TRUE ? -1L : 0L;
+		}
+		return lanes;
+	}
+
+	/**
+	 * Recomputes every component in all 64 lanes at once from the sources in
+	 * getLanes().
+	 */
+	public void propagateLanes() {
+		propagateLanes(STATE_PART);
+		propagateLanes(MOVE_PART);
+	}
+
+	/**
+	 * Recomputes one part of the components in all 64 lanes: STATE_PART, the
+	 * ones that do not depend on the input propositions (legal, terminal and
+	 * goal propositions among them), or MOVE_PART, the rest. The inputs only
+	 * have to be set before the latter.
+	 */
+	public void propagateLanes(int part) {
+		final long[] lanes = getLanes();
+		if (evaluator != null) {
+			evaluator.propagateLanes(lanes, part);
+			return;
+		}
+
+		final byte[] types = this.types;
+		final int[] inputOffsets = this.inputOffsets;
+		final int[] inputs = this.inputs;
+		for (int c : parts[part]) {
+			int from = inputOffsets[c], to = inputOffsets[c + 1];
+			long value;
+			switch (types[c]) {
+			case VIEW:
+				value = lanes[inputs[from]];
+				break;
+			case AND:
+				value = -1L;
+				for (int j = from; j < to && value != 0; j++)
+					value &= lanes[inputs[j]];
+				break;
+			case OR:
+				value = 0L;
+				for (int j = from; j < to && value != -1L; j++)
+					value |= lanes[inputs[j]];
+				break;
+			default: // NOT
+				value = ~lanes[inputs[from]];
+			}
+			lanes[c] = value;
+		}
+	}
+
+	/**
+	 * Sets the value of a source for the next propagateChanges().
+	 */
+	public void set(int source, boolean value) {
+		if (values[source] == value)
+			return;
+		values[source] = value;
+		if (countsValid)
+			notifyOutputs(source, value);
+	}
+
+	/**
+	 * Brings all values up to date with the sources changed through set()
+	 * since the last propagation. Components are recomputed in topological
+	 * order, so each of them changes at most once. The first call after a
+	 * full propagate() falls back to it and sets up the input counts.
+	 */
+	public void propagateChanges() {
+		if (!countsValid) {
+			propagate();
+			countTrueInputs();
+			return;
+		}
+
+		while (heapSize > 0)
+			update(poll());
+	}
+
+	/**
+	 * Like propagateChanges(), but only brings the components of cone (see
+	 * getCone()) up to date, inCone being its getConeMask(). The changes to
+	 * other components stay queued for a later call that reads them.
+	 */
+	public void propagateChanges(int[] cone, boolean[] inCone) {
+		if (!countsValid) {
+			propagateChanges();
+			return;
+		}
+		if (cone.length == 0)
+			return;
+
+		// Nothing after the last component of the cone can feed into it
+		int limit = positions[cone[cone.length - 1]];
+		int numDeferred = 0;
+		while (heapSize > 0 && positions[heap[0]] <= limit) {
+			int c = poll();
+			if (inCone[c])
+				update(c);
+			else
+				deferred[numDeferred++] = c;
+		}
+		for (int i = 0; i < numDeferred; i++) {
+			queued[deferred[i]] = true;
+			offer(deferred[i]);
+		}
+	}
+
+	/*
+	 * Recomputes a queued component from the input counts and passes a
+	 * change on
+	 */
+	private void update(int c) {
+		final boolean[] values = this.values;
+		int from = inputOffsets[c];
+		boolean value;
+		switch (types[c]) {
+		case VIEW:
+			value = values[inputs[from]];
+			break;
+		case AND:
+			value = trueInputs[c] == inputOffsets[c + 1] - from;
+			break;
+		case OR:
+			value = trueInputs[c] > 0;
+			break;
+		default: // NOT
+			value = !values[inputs[from]];
+		}
+		if (value != values[c]) {
+			values[c] = value;
+			notifyOutputs(c, value);
+		}
+	}
+
+	private void countTrueInputs() {
+		for (int c : order) {
+			if (types[c] == AND || types[c] == OR) {
+				int count = 0;
+				for (int j = inputOffsets[c]; j < inputOffsets[c + 1]; j++) {
+					if (values[inputs[j]])
+						count++;
+				}
+				trueInputs[c] = count;
+			}
+		}
+		countsValid = true;
+	}
+
+	private void notifyOutputs(int c, boolean value) {
+		for (int j = outputOffsets[c]; j < outputOffsets[c + 1]; j++) {
+			int output = outputs[j];
+			if (types[output] == AND || types[output] == OR)
+				trueInputs[output] += value ? 1 : -1;
+			if (!queued[output]) {
+				queued[output] = true;
+				offer(output);
+			}
+		}
+	}
+
+	private void offer(int c) {
+		int i = heapSize++;
+		int position = positions[c];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (positions[heap[parent]] <= position)
+				break;
+			heap[i] = heap[parent];
+			i = parent;
+		}
+		heap[i] = c;
+	}
+
+	private int poll() {
+		int result = heap[0];
+		queued[result] = false;
+		int last = heap[--heapSize];
+		int position = positions[last];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= heapSize)
+				break;
+			if (child + 1 < heapSize && positions[heap[child + 1]] < positions[heap[child]])
+				child++;
+			if (positions[heap[child]] >= position)
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = last;
+		return result;
+	}
+
+	public int getIndex(Component c) {
+		return indices.get(c);
+	}
+
+	public int[] getIndices(Collection<? extends Component> cs) {
+		int[] result = new int[cs.size()];
+		int i = 0;
+		for (Component c : cs)
+			result[i++] = indices.get(c);
+		return result;
+	}
+
+	public Component getComponent(int index) {
+		return components[index];
+	}
+
+	public int size() {
+		return components.length;
+	}
+
+	/* Raw structure, for PropNetCodeGenerator */
+	byte[] getTypes() {
+		return types;
+	}
+
+	int[] getInputOffsets() {
+		return inputOffsets;
+	}
+
+	int[] getInputs() {
+		return inputs;
+	}
+
+	int[] getOrder() {
+		return order;
+	}
+
+	int[] getPart(int part) {
+		return parts[part];
+	}
+}
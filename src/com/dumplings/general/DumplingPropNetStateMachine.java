@@ -3,12 +3,13 @@ package com.dumplings.general;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 
 import util.gdl.grammar.Gdl;
@@ -39,26 +40,23 @@ import util.statemachine.implementation.propnet.PropNetMove;
 import util.statemachine.implementation.propnet.PropNetRole;
 import util.statemachine.implementation.prover.query.ProverQueryBuilder;
 
+import com.dumplings.utils.Canonicalizer;
+
 public class DumplingPropNetStateMachine extends StateMachine {
 	/** The underlying proposition network */
 	private PropNet propNet;
-	/** The topological ordering of the propositions */
-	private List<Proposition> ordering;
 	/** The player roles */
 	private List<Role> roles;
-	private boolean isTimeout = false;	
 	/*
 	 * This is used to cache the state when calling updateState so that it
 	 * doesn't have to recompute that every time.
 	 */
-	private static MachineState savedState = null;
+	private MachineState savedState = null;
 
 	/*
 	 * The propositions, stored here so we don't have to load every time it's
 	 * used
 	 */
-	public void timeout() { isTimeout = true; }
-	public boolean isTimeout() { return isTimeout; }
 	public Map<GdlTerm, Proposition> inputPropositions = null;
 	public Map<GdlTerm, Proposition> basePropositions = null;
 	public Proposition initProposition = null;
@@ -67,52 +65,139 @@ public class DumplingPropNetStateMachine extends StateMachine {
 	public Map<Role, Set<Proposition>> goalPropositions = null;
 	public List<Proposition> latches = new ArrayList<Proposition>();
 	
-	public void enableLatches() {
-		getLatches();
+	/*
+	 * Fixed indexing of the base propositions used by BitSetMachineState:
+	 * bit i of a state corresponds to baseArray[i] / baseSentences[i]
+	 */
+	private Proposition[] baseArray = null;
+	private GdlSentence[] baseSentences = null;
+	private Map<GdlSentence, Integer> baseIndices = null;
+	/*
+	 * Zobrist key of every base proposition; the key of a state is the XOR of
+	 * the keys of its true bases, see Canonicalizer.sentenceKey()
+	 */
+	private long[] zobristKeys = null;
+	/* Key of the game description, see Canonicalizer.gameKey() */
+	private long gameKey = 0;
+	
+	/*
+	 * The compiled propnet that answers all state machine queries, and the
+	 * indices of the interesting propositions in its value vector. Each
+	 * state machine (factors included) owns its copy of the compiled propnet,
+	 * values is that copy's value vector.
+	 */
+	private CompiledPropNet compiled = null;
+	private boolean[] values = null;
+	/* Base bits and true inputs currently loaded into values */
+	private long[] loadedBits = null;
+	/* Zobrist key of loadedBits, see zobristKeys */
+	private long loadedKey = 0;
+	private int[] loadedInputs = NO_INPUTS;
+	private int numLoadedInputs = 0;
+	private int[] inputBuffer = NO_INPUTS;
+	/* Whether to update values differentially from the loaded state */
+	private boolean incrementalPropagation = true;
+	/*
+	 * Whether the loaded state has only its sources set, and queries bring
+	 * the cones they read up to date on demand (see evaluate()): from the
+	 * queued changes with incremental propagation, otherwise by computing
+	 * them. Only generated code without incremental propagation computes
+	 * everything when the state is loaded.
+	 */
+	private boolean lazyState = false;
+	private boolean lazyIncremental = false;
+	private static final int TERMINAL_CONE = 0;
+	private static final int NEXT_CONE = 1;
+	private static final int FULL_CONE = 2;
+	/* Those, then the goal cone of every role, then its legal cone */
+	private int[][] cones = null;
+	private boolean[] evaluatedCones = null;
+	/* getConeMask() of every cone, null for FULL_CONE */
+	private boolean[][] coneMasks = null;
+	/* Whether initialize() runs the propnet through PropNetOptimizer */
+	private boolean optimizePropNet = true;
+	private static final int[] NO_INPUTS = new int[0];
+	
+	/** Number of playouts performDepthCharges() runs at once */
+	public static final int LANES = 64;
+	/* Set from other threads to make the depth charges give up, see setDepthChargesStopped() */
+	private volatile boolean depthChargesStopped = false;
+	/* Scratch space for performDepthCharge() */
+	private long[] chargeBits = null;
+	/* Scratch space for performDepthCharges() */
+	private int[] laneMoves = new int[LANES];
+	private int[] laneMoveCounts = new int[LANES];
+	private int[] baseComponents = null;
+	private int[] nextComponents = null;
+	private int[] inputComponents = null;
+	private int initComponent;
+	private int terminalComponent;
+	private Map<Role, Integer> roleIndices = null;
+	private Proposition[][] legalArrays = null;
+	private int[][] legalComponents = null;
+	/* Per role, one Move per legal proposition, its index and the input component it plays */
+	private Move[][] legalMoves = null;
+	private List<Map<Move, Integer>> moveIndices = null;
+	private int[][] legalInputs = null;
+	private Proposition[][] goalArrays = null;
+	private int[][] goalComponents = null;
+	/* Value of every goal proposition, and per role the one worth 100 (or null) */
+	private int[][] goalValues = null;
+	private Proposition[] winningGoals = null;
+	
+	/* Time one latch, inhibitor or requirement query may take */
+	private static final long QUERY_TIME = 1000;
+	/* See newFormula() */
+	private int[] nextOfComponent = null;
+	/*
+	 * Per role, the base latches that rule out its 100 goal as a mask over
+	 * the state bits, and the other latches that do (see isDeadState())
+	 */
+	private long[][] killMasks = null;
+	private int[][] killComponents = null;
+	/*
+	 * For every component, the base and input propositions it depends on
+	 * within one step: bit i stands for baseComponents[i], bit
+	 * baseComponents.length + j for inputComponents[j]. Built on first use
+	 * by getDependencies(), components with the same dependencies usually
+	 * share one array.
+	 */
+	private long[][] dependencies = null;
+	
+	/**
+	 * Finds latches until timeout (a System.currentTimeMillis() value). The
+	 * base propositions are tried first; whatever has been proven by the
+	 * deadline ends up in latches.
+	 */
+	public void enableLatches(long timeout) {
+		getLatches(timeout);
+	}
+	
+	/*
+	 * A fresh formula over the compiled propnet, see PropNetFormula
+	 */
+	private PropNetFormula newFormula() {
+		if (nextOfComponent == null) {
+			int[] nextOf = new int[compiled.size()];
+			Arrays.fill(nextOf, -1);
+			for (int i = 0; i < baseComponents.length; i++)
+				nextOf[baseComponents[i]] = nextComponents[i];
+			nextOfComponent = nextOf;
+		}
+		return new PropNetFormula(compiled, nextOfComponent, initComponent);
 	}
 	
 	/*
 	 * Checks whether p is a (anti)requirement for q
 	 */
 	public boolean _isRequirement(Proposition p, Proposition q, boolean anti) {
-		// Need to check whether q => p (or q => not(p)) holds
-		// So find determinants of q, try out all combinations of input values
-		// for the determinants and check whether the above holds or not
-		Set<Proposition> determinants = getDeterminants(q);
-		List<Boolean[]> combinations = getCombinations(determinants.size());
-		for (Boolean[] b : combinations) {
-			// Set the propositions to the corresponding truth values
-			int i = 0;
-			for (Proposition pp : determinants) {
-				pp.setValue(b[i]);
-				i++;
-			}
-			
-			// Propagate the values
-			for (Proposition pp : ordering) {
-				if (pp.getInputs().size() == 1) {
-					pp.setValue(pp.getSingleInput().getValue());
-				}
-			}
-			
-			getStateFromBase();
-			
-			if (q.getValue()) {
-				if (anti) {
-					// Anti-requirement
-					if (p.getValue())
-						return false;
-				}
-				else {
-					// Requirement
-					if (!p.getValue())
-						return false;
-				}
-					
-			}
-			
-		}
-		return true;
+		// q => p (or q => not(p)) holds iff q and not(p) (or q and p) is
+		// unsatisfiable
+		PropNetFormula formula = newFormula();
+		formula.assume(formula.literal(compiled.getIndex(q), 0));
+		int pLiteral = formula.literal(compiled.getIndex(p), 0);
+		formula.assume(anti ? pLiteral : -pLiteral);
+		return formula.solve(System.currentTimeMillis() + QUERY_TIME) == Boolean.FALSE;
 	}
 
 	public boolean isRequirement(Proposition p, Proposition q) {
@@ -123,210 +208,244 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		return _isRequirement(p, q, true);
 	}
 	
+	/**
+	 * Whether p and q can never be true at the same time. Queries that take
+	 * too long count as not inhibiting.
+	 */
 	public boolean isInhibiting(Proposition p, Proposition q) {
-		// Strategy: get input/base propositions that determine p
-		// Then check all combinations for determinants and check whether "p true => q false" holds
-		
-		Set<Proposition> determinants = getDeterminants(p);
-		List<Boolean[]> combinations = getCombinations(determinants.size());
-		for (Boolean[] b : combinations) {
-			// Set the propositions to the corresponding truth values
-			int i = 0;
-			for (Proposition pp : determinants) {
-				pp.setValue(b[i]);
-				i++;
-			}
-			
-			// Propagate the values
-			for (Proposition pp : ordering) {
-				if (pp.getInputs().size() == 1) {
-					pp.setValue(pp.getSingleInput().getValue());
-				}
-			}
-			
-			getStateFromBase();
-			
-			if (p.getValue()) {
-				// Propagate the values
-				for (Proposition pp : ordering) {
-					if (pp.getInputs().size() == 1) {
-						pp.setValue(pp.getSingleInput().getValue());
-					}
-				}
-				
-				getStateFromBase();
-				
-				if (q.getValue())
-					return false;
-			}
-			
-		}
-		
-		return true;
+		return isInhibiting(p, q, System.currentTimeMillis() + QUERY_TIME);
 	}
 	
-	public List<Proposition> getLatches() {
-		List<Proposition> propositions = new ArrayList<Proposition>(
-				propNet.getPropositions());
-		
-		initProposition.setValue(false);
+	private boolean isInhibiting(Proposition p, Proposition q, long deadline) {
+		PropNetFormula formula = newFormula();
+		formula.assume(formula.literal(compiled.getIndex(p), 0));
+		formula.assume(formula.literal(compiled.getIndex(q), 0));
+		return formula.solve(deadline) == Boolean.FALSE;
+	}
+	
+	/**
+	 * Same as enableLatches(timeout), returning all latches found so far.
+	 */
+	public List<Proposition> getLatches(long timeout) {
+		List<Proposition> propositions = new ArrayList<Proposition>(baseArray.length);
+		propositions.addAll(Arrays.asList(baseArray));
+		for (Proposition p : propNet.getPropositions()) {
+			if (!basePropositions.containsKey(p.getName()))
+				propositions.add(p);
+		}
 		
 		// Go through all propositions and check if it is latch
+		int checked = 0;
 		for (Proposition p : propositions) {
-			try {
-				if (isLatch(p))
-					latches.add(p);
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+			if (System.currentTimeMillis() > timeout) {
+				System.out.println("Out of time for latches after " + checked + " of " + propositions.size() + " propositions");
+				break;
 			}
+			if (isLatch(p, Math.min(timeout, System.currentTimeMillis() + QUERY_TIME)))
+				latches.add(p);
+			checked++;
 		}
+		System.out.println("Found " + latches.size() + " latches");
+		computeKillMasks(timeout);
 		return latches;
 	}
+	
+	/*
+	 * Decides once per role and latch whether the latch being true rules out
+	 * the role's 100 goal, so isDeadState() only has to look at the state
+	 */
+	private void computeKillMasks(long timeout) {
+		long[][] masks = new long[roles.size()][BitSetMachineState.numWords(baseArray.length)];
+		int[][] components = new int[roles.size()][];
+		int killers = 0;
+		for (int r = 0; r < roles.size(); r++) {
+			List<Integer> others = new ArrayList<Integer>();
+			Proposition goalProposition = winningGoals[r];
+			for (Proposition latch : latches) {
+				if (goalProposition == null)
+					break;
+				if (!isInhibiting(latch, goalProposition, Math.min(timeout, System.currentTimeMillis() + QUERY_TIME)))
+					continue;
+				Integer bit = baseIndices.get(latch.getName().toSentence());
+				if (bit != null && baseArray[bit] == latch)
+					masks[r][bit >>> 6] |= 1L << bit;
+				else
+					others.add(compiled.getIndex(latch));
+				killers++;
+			}
+			components[r] = new int[others.size()];
+			for (int i = 0; i < others.size(); i++)
+				components[r][i] = others.get(i);
+		}
+		killMasks = masks;
+		killComponents = components;
+		System.out.println("Found " + killers + " latches that rule out a 100 goal");
+	}
 
-	public boolean isLatch(Proposition p) throws MoveDefinitionException, TransitionDefinitionException {
+	public boolean isLatch(Proposition p) {
+		return isLatch(p, System.currentTimeMillis() + QUERY_TIME);
+	}
+	
+	/*
+	 * p is a latch if once true it stays true whatever is played, that is if
+	 * p in one state but not in the next is unsatisfiable. Undecided by the
+	 * deadline means no.
+	 */
+	private boolean isLatch(Proposition p, long deadline) {
 		if (initProposition.equals(p) || inputPropositions.containsValue(p))
 			return false;	// init and input propositions are never considered as latches
 		
-		Set<Proposition> determinants = getDeterminants(p);
-		if (determinants.size() == 0)
+		boolean determined = false;
+		for (long word : getDeterminants(p))
+			determined |= word != 0;
+		if (!determined)
 			return false;	// this proposition only depends on init, so is not a latch
 		
-		// Enumerate all possible values for determinants
-		// In each case, check whether "p true => p true in next states" holds			
-		List<Boolean[]> combinations = getCombinations(determinants.size());
-		for (Boolean[] b : combinations) {
-			// Set the propositions to the corresponding truth values
-			int i = 0;
-			for (Proposition pp : determinants) {
-				pp.setValue(b[i]);
-				i++;
-			}
-			
-			// Propagate the values
-			for (Proposition pp : ordering) {
-				if (pp.getInputs().size() == 1) {
-					pp.setValue(pp.getSingleInput().getValue());
-				}
-			}
-			
-			getStateFromBase();
-			
-			// Check whether p is true
-			if (p.getValue()) {
-				// Propagate the values
-				for (Proposition pp : ordering) {
-					if (pp.getInputs().size() == 1) {
-						pp.setValue(pp.getSingleInput().getValue());
-					}
-				}
-				
-				// Update base propositions
-				getStateFromBase();
-				
-				if (!p.getValue())
-					return false;
-			}
-		}
-		return true;
+		PropNetFormula formula = newFormula();
+		int component = compiled.getIndex(p);
+		formula.assume(formula.literal(component, 0));
+		formula.assume(-formula.literal(component, 1));
+		return formula.solve(deadline) == Boolean.FALSE;
 	}
 	
 	/*
-	 * Given an integer n, this computes the power set of a set of length n
-	 * It returns a list of boolean arrays of length n, each item indicating whether the element
-	 * at that position is included in that set or not
+	 * Finds input and base propositions that determine p, as a bitset laid
+	 * out like dependencies
 	 */
-	private List<Boolean[]> getCombinations(int n) {
-		List<Boolean[]> list = new ArrayList<Boolean[]>();
-		int size = (int) Math.pow(2, n);
-		
-		// Populate the power set
-		for (int i = 0; i < size; i++) {
-			Boolean[] b = new  Boolean[n];
-			// Fill this entry of size n
-			for (int j = 0; j < n; j++) {
-				// Check whether j'th bit is true or false
-				if ((i & (1 << j)) > 0)
-					b[j] = true;
-				else
-					b[j] = false;
-			}
-			list.add(b);
-		}
-		return list;
+	private long[] getDeterminants(Proposition p) {
+		int component = compiled.getIndex(p);
+		Integer bit = baseIndices.get(p.getName().toSentence());
+		if (bit != null && baseArray[bit] == p)
+			component = nextComponents[bit];
+		return getDeterminants(getDependencies()[component]);
 	}
 	
 	/*
-	 * Finds input and base propositions that determine p
+	 * Extends a set of dependencies with those of the next values of its
+	 * base propositions, until nothing changes
 	 */
-	private Set<Proposition> getDeterminants(Component p) {
-		Set<Proposition> determinants = new HashSet<Proposition>();
+	private long[] getDeterminants(long[] start) {
+		long[][] dependencies = getDependencies();
+		long[] closure = start.clone();
+		long[] expanded = new long[closure.length];
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < baseComponents.length; i++) {
+				long bit = 1L << i;
+				if ((closure[i >>> 6] & bit) == 0 || (expanded[i >>> 6] & bit) != 0)
+					continue;
+				expanded[i >>> 6] |= bit;
+				changed = true;
+				long[] next = dependencies[nextComponents[i]];
+				for (int w = 0; w < closure.length; w++)
+					closure[w] |= next[w];
+			}
+		}
+		return closure;
+	}
+	
+	private long[][] getDependencies() {
+		if (dependencies != null)
+			return dependencies;
 		
-		Set<Component> inputs = new HashSet<Component>();
-		inputs.addAll(p.getInputs());
+		int numWords = BitSetMachineState.numWords(baseComponents.length + inputComponents.length);
+		long[][] result = new long[compiled.size()][];
+		long[] none = new long[numWords];
+		Arrays.fill(result, none);
+		for (int i = 0; i < baseComponents.length + inputComponents.length; i++) {
+			long[] own = new long[numWords];
+			own[i >>> 6] = 1L << i;
+			result[i < baseComponents.length ? baseComponents[i] : inputComponents[i - baseComponents.length]] = own;
+		}
 		
-		while (!inputs.isEmpty()) {
-			Component c = inputs.iterator().next();
-			inputs.remove(c);
-			if (determinants.contains(c))
-				continue;
-			
-			if (c.equals(p))
-				determinants.add((Proposition) c);
-			else {
-				if (c instanceof Proposition && 
-						(inputPropositions.containsValue(c) || basePropositions.containsValue(c))) {
-					determinants.add((Proposition) c);
-					inputs.addAll(c.getInputs());
-				} else {
-					inputs.addAll(c.getInputs());
+		// A gate depends on the union of its inputs, only copied once it
+		// differs from the first one
+		int[] inputOffsets = compiled.getInputOffsets();
+		int[] inputs = compiled.getInputs();
+		for (int c : compiled.getOrder()) {
+			long[] union = none;
+			boolean owned = false;
+			for (int j = inputOffsets[c]; j < inputOffsets[c + 1]; j++) {
+				long[] input = result[inputs[j]];
+				if (input == union || input == none)
+					continue;
+				if (union == none) {
+					union = input;
+					continue;
+				}
+				for (int w = 0; w < numWords; w++) {
+					if ((input[w] & ~union[w]) == 0)
+						continue;
+					if (!owned) {
+						union = union.clone();
+						owned = true;
+					}
+					union[w] |= input[w];
 				}
 			}
-			
+			result[c] = union;
 		}
-		for (Component c : inputs) {
-			if (c instanceof Proposition) {
-				if (inputPropositions.containsValue(c) || basePropositions.containsValue(c))
-					determinants.add((Proposition) c);
-				else
-					determinants.addAll(getDeterminants(c));	// Step through until we find an
-																// input/base proposition
-			}
-			else {
-				determinants.addAll(getDeterminants(c));
-			}
+		dependencies = result;
+		return result;
+	}
+	
+	/*
+	 * The input propositions in a set of dependencies
+	 */
+	private Set<Proposition> getInputPropositions(long[] dependencies) {
+		Set<Proposition> result = new HashSet<Proposition>();
+		for (int j = 0; j < inputComponents.length; j++) {
+			int i = baseComponents.length + j;
+			if ((dependencies[i >>> 6] & (1L << i)) != 0)
+				result.add((Proposition) compiled.getComponent(inputComponents[j]));
 		}
-		
-		return determinants;
+		return result;
 	}
 
+	/**
+	 * Whether a latch that rules out role's 100 goal is true in state. Only
+	 * knows about the latches found by enableLatches().
+	 */
 	public boolean isDeadState(MachineState state, Role role) throws GoalDefinitionException {
-		updateState(state, null);
-		Proposition goalProposition = null;
-		for (Proposition goal : goalPropositions.get(role)) {
-			if (getGoalValue(goal) == 100)
-				goalProposition = goal;
-		}
-		
-		if (goalProposition == null)
+		int r = roleIndices.get(role);
+		if (winningGoals[r] == null)
 			throw new GoalDefinitionException(state, role);
+		if (killMasks == null)
+			return false;
+		
+		long[] bits = toBits(state);
+		long[] mask = killMasks[r];
+		for (int w = 0; w < mask.length; w++) {
+			if ((bits[w] & mask[w]) != 0)
+				return true;
+		}
+		if (killComponents[r].length == 0)
+			return false;
 		
-		for (Proposition latch : latches) {
-			if (latch.getValue() && isInhibiting(latch, goalProposition))
+		updateState(state, null);
+		evaluate(FULL_CONE);
+		for (int c : killComponents[r]) {
+			if (values[c])
 				return true;
 		}
 		return false;
 	}
 	
 	/**
-	 * Initializes the PropNetStateMachine. You should compute the topological
-	 * ordering here. Additionally you may compute the initial state here, at
-	 * your discretion.
+	 * Initializes the PropNetStateMachine: builds and optimizes the propnet
+	 * and compiles it, which also puts it in topological order (see
+	 * CompiledPropNet).
 	 */
 	@Override
 	public void initialize(List<Gdl> description) {
+		long start = System.currentTimeMillis();
+		gameKey = Canonicalizer.gameKey(description);
 		propNet = OptimizingPropNetFactory.create(description);		
-		System.out.println("Finished building propnet. Initializing state machine.");
+		System.out.println("Finished building propnet in " + (System.currentTimeMillis() - start)
+				+ " ms. Initializing state machine.");
+		if (optimizePropNet)
+			propNet = PropNetOptimizer.optimize(propNet);
 
 		//propNet.renderToFile(new File(System.getProperty("user.home"),
 		//		"propnet.dot").toString());
@@ -348,9 +467,14 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		System.out.println("6");
 		terminalProposition = propNet.getTerminalProposition();
 		System.out.println("7");
+		
+		indexBasePropositions();
 
-		ordering = getOrdering();
-		System.out.println("Initialization done");
+		long compileStart = System.currentTimeMillis();
+		compilePropNet();
+		System.out.println("Compiled propnet with " + compiled.size() + " components");
+		System.out.println("Initialization done, rest of initialization took "
+				+ (System.currentTimeMillis() - compileStart) + " ms");
 	}
 
 	/**
@@ -362,7 +486,8 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		if (!state.equals(savedState))
 			updateState(state, null);
 		// System.out.println("isTerminal: " + getStateFromBase());
-		return terminalProposition.getValue();
+		evaluate(TERMINAL_CONE);
+		return values[terminalComponent];
 	}
 
 	/**
@@ -376,20 +501,54 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		if (!state.equals(savedState))
 			updateState(state, null);
 
-		Integer goalValue = null;
-		for (Proposition p : goalPropositions.get(role)) {
+		return getLoadedGoal(state, roleIndices.get(role));
+	}
+
+	/**
+	 * The goals of all roles, in the order of getRoles(), from a single
+	 * propagation of state.
+	 */
+	@Override
+	public List<Integer> getGoals(MachineState state) throws GoalDefinitionException {
+		if (!state.equals(savedState))
+			updateState(state, null);
+
+		List<Integer> goals = new ArrayList<Integer>(roles.size());
+		for (int r = 0; r < roles.size(); r++)
+			goals.add(getLoadedGoal(state, r));
+		return goals;
+	}
+
+	/**
+	 * Same as getGoals(MachineState), but writes the goals into the given
+	 * array instead of allocating a list.
+	 */
+	public int[] getGoals(MachineState state, int[] goals) throws GoalDefinitionException {
+		if (!state.equals(savedState))
+			updateState(state, null);
+
+		for (int r = 0; r < roles.size(); r++)
+			goals[r] = getLoadedGoal(state, r);
+		return goals;
+	}
+
+	private int getLoadedGoal(MachineState state, int roleIndex) throws GoalDefinitionException {
+		evaluate(goalCone(roleIndex));
+		int[] goals = goalComponents[roleIndex];
+		int goalValue = -1;
+		for (int i = 0; i < goals.length; i++) {
 			// Check if more than two goal propositions are true
-			if (p.getValue()) {
-				if (goalValue != null) {
-					throw new GoalDefinitionException(state, role);
+			if (values[goals[i]]) {
+				if (goalValue != -1) {
+					throw new GoalDefinitionException(state, roles.get(roleIndex));
 				}
-				goalValue = getGoalValue(p);
+				goalValue = goalValues[roleIndex][i];
 			}
 		}
 
 		// If there is no goal, throw exception
-		if (goalValue == null)
-			throw new GoalDefinitionException(state, role);
+		if (goalValue == -1)
+			throw new GoalDefinitionException(state, roles.get(roleIndex));
 		return goalValue;
 	}
 
@@ -401,21 +560,8 @@ public class DumplingPropNetStateMachine extends StateMachine {
 	@Override
 	public MachineState getInitialState() {
 		savedState = null;
-		for (Proposition p : inputPropositions.values()) {
-			p.setValue(false);
-		}
-		for (Proposition p : basePropositions.values()) {
-			p.setValue(false);
-		}
-
-		initProposition.setValue(true);
-
-		for (Proposition p : ordering) {
-			if (p.getInputs().size() == 1) {
-				p.setValue(p.getSingleInput().getValue());
-			}
-		}
-		return getStateFromBase();
+		loadState(new long[loadedBits.length], NO_INPUTS, 0, true);
+		return getNextStateFromBase();
 	}
 
 	/**
@@ -427,15 +573,55 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		if (!state.equals(savedState))
 			updateState(state, null);
 
-		List<Move> moves = new ArrayList<Move>();;
-		for (Proposition p : legalPropositions.get(role)) {
-			if (p.getValue()) {
-				moves.add(getMoveFromProposition(p));
+		int roleIndex = roleIndices.get(role);
+		evaluate(legalCone(roleIndex));
+		int[] legals = legalComponents[roleIndex];
+		List<Move> moves = new ArrayList<Move>();
+		for (int i = 0; i < legals.length; i++) {
+			if (values[legals[i]]) {
+				moves.add(legalMoves[roleIndex][i]);
 			}
 		}
 		return moves;
 	}
 
+	/**
+	 * Writes the indices of the legal moves for role in state into moves and
+	 * returns how many there are; moves needs room for all moves of the role.
+	 * The indices can be turned into moves with getLegalMove() or passed on
+	 * to getNextState(MachineState, int[]). Does not allocate.
+	 */
+	public int getLegalMoveIndices(MachineState state, Role role, int[] moves) {
+		if (!state.equals(savedState))
+			updateState(state, null);
+
+		int roleIndex = roleIndices.get(role);
+		evaluate(legalCone(roleIndex));
+		int[] legals = legalComponents[roleIndex];
+		int count = 0;
+		for (int i = 0; i < legals.length; i++) {
+			if (values[legals[i]])
+				moves[count++] = i;
+		}
+		return count;
+	}
+
+	/**
+	 * The move with the given index among all possible moves of role. The
+	 * same Move object is returned every time.
+	 */
+	public Move getLegalMove(Role role, int index) {
+		return legalMoves[roleIndices.get(role)][index];
+	}
+
+	/**
+	 * Number of moves role can possibly make, the bound on the indices from
+	 * getLegalMoveIndices().
+	 */
+	public int getNumPossibleMoves(Role role) {
+		return legalMoves[roleIndices.get(role)].length;
+	}
+
 	/**
 	 * Computes the next state given state and the list of moves.
 	 */
@@ -443,41 +629,313 @@ public class DumplingPropNetStateMachine extends StateMachine {
 	public MachineState getNextState(MachineState state, List<Move> moves)
 			throws TransitionDefinitionException {
 		updateState(state, moves);
-		return getStateFromBase();
+		return getNextStateFromBase();
 	}
 
-	public void updateState(MachineState state, List<Move> moves) {
-		// Set base propositions
-		for (Proposition p : propNet.getBasePropositions().values()) {
-			p.setValue(false);
+	/**
+	 * The next states of state for all its joint moves, in the order of
+	 * getLegalJointMoves(state). Searches that may not need all of them
+	 * should use a NextStateIterator instead.
+	 */
+	@Override
+	public List<MachineState> getNextStates(MachineState state) throws MoveDefinitionException {
+		return toList(NextStateIterator.of(this, state));
+	}
+	
+	/**
+	 * The next states of state for every move of role, each in the order of
+	 * getLegalJointMoves(state, role, move).
+	 */
+	@Override
+	public Map<Move, List<MachineState>> getNextStates(MachineState state, Role role) throws MoveDefinitionException {
+		Map<Move, List<MachineState>> nextStates = new HashMap<Move, List<MachineState>>();
+		for (Move move : getLegalMoves(state, role))
+			nextStates.put(move, getNextStates(state, role, move));
+		return nextStates;
+	}
+	
+	/**
+	 * The next states of state when role plays move, in the order of
+	 * getLegalJointMoves(state, role, move).
+	 */
+	public List<MachineState> getNextStates(MachineState state, Role role, Move move) throws MoveDefinitionException {
+		return toList(new NextStateIterator(this, state, getLegalJointMoveIterator(state, role, move)));
+	}
+	
+	/**
+	 * The next state of state for each of the joint moves, in order.
+	 */
+	public List<MachineState> getNextStates(MachineState state, List<List<Move>> jointMoves) {
+		return toList(new NextStateIterator(this, state, jointMoves.iterator()));
+	}
+	
+	private List<MachineState> toList(NextStateIterator nextStates) {
+		List<MachineState> list = new ArrayList<MachineState>();
+		for (MachineState nextState : nextStates)
+			list.add(nextState);
+		return list;
+	}
+	
+	/**
+	 * The next state of the state with the given base bits for the joint
+	 * move, for NextStateIterator. Only the inputs and bases that differ from
+	 * what is loaded are propagated again.
+	 */
+	BitSetMachineState getNextState(long[] bits, List<Move> moves) {
+		loadState(bits, inputBuffer, toInputs(moves), false);
+		savedState = null;
+		return getNextStateFromBase();
+	}
+	
+	/**
+	 * The joint moves of getLegalJointMoves(state), one at a time.
+	 */
+	public JointMoveIterator getLegalJointMoveIterator(MachineState state) throws MoveDefinitionException {
+		return getLegalJointMoveIterator(state, null, null);
+	}
+	
+	/**
+	 * The joint moves of getLegalJointMoves(state, role, move), one at a
+	 * time.
+	 */
+	public JointMoveIterator getLegalJointMoveIterator(MachineState state, Role role, Move move) throws MoveDefinitionException {
+		List<List<Move>> legals = new ArrayList<List<Move>>(roles.size());
+		for (Role r : roles) {
+			if (r.equals(role))
+				legals.add(Collections.singletonList(move));
+			else
+				legals.add(getLegalMoves(state, r));
 		}
-
-		for (GdlSentence s : state.getContents()) {
-			propNet.getBasePropositions().get(s.toTerm()).setValue(true);
+		return new JointMoveIterator(legals);
+	}
+	
+	/**
+	 * The number of joint moves in state, that is the size of
+	 * getLegalJointMoves(state), without building them.
+	 */
+	public int getLegalJointMoveCount(MachineState state) {
+		return getLegalJointMoveCount(state, null);
+	}
+	
+	/**
+	 * The size of getLegalJointMoves(state, role, move): the number of joint
+	 * moves of the other roles.
+	 */
+	public int getLegalJointMoveCount(MachineState state, Role role, Move move) {
+		return getLegalJointMoveCount(state, role);
+	}
+	
+	private int getLegalJointMoveCount(MachineState state, Role fixedRole) {
+		if (!state.equals(savedState))
+			updateState(state, null);
+		
+		int count = 1;
+		for (int r = 0; r < roles.size(); r++) {
+			if (roles.get(r).equals(fixedRole))
+				continue;
+			evaluate(legalCone(r));
+			int roleCount = 0;
+			for (int c : legalComponents[r]) {
+				if (values[c])
+					roleCount++;
+			}
+			count *= roleCount;
 		}
+		return count;
+	}
 	
-
-		// Set input propositions
-		for (Proposition p : propNet.getInputPropositions().values()) {
-			p.setValue(false);
+	/**
+	 * Plays a random game from state, every role picking uniformly among its
+	 * legal moves, and writes the goals at its end into goals (in the order
+	 * of getRoles(), -1 where undefined). Stops after depthLimit moves if
+	 * that is not negative, or after setDepthChargesStopped(true), in which
+	 * case goals are all -1 unless the state reached is terminal. The states
+	 * in between only ever exist in the
+	 * value vector, so apart from toBits() on a foreign state nothing is
+	 * allocated.
+	 * 
+	 * @return the number of moves played
+	 */
+	public int performDepthCharge(MachineState state, int depthLimit, Random random, int[] goals) {
+		savedState = null;
+		long[] bits = chargeBits;
+		System.arraycopy(toBits(state), 0, bits, 0, bits.length);
+		
+		int depth = 0;
+		while (true) {
+			loadState(bits, NO_INPUTS, 0, false);
+			evaluate(TERMINAL_CONE);
+			if (values[terminalComponent] || depth == depthLimit || depthChargesStopped)
+				break;
+			
+			int numInputs = 0;
+			for (int r = 0; r < roles.size(); r++) {
+				evaluate(legalCone(r));
+				int[] legals = legalComponents[r];
+				int move = -1, count = 0;
+				for (int i = 0; i < legals.length; i++) {
+					if (values[legals[i]] && random.nextInt(++count) == 0)
+						move = i;
+				}
+				if (move >= 0 && legalInputs[r][move] >= 0)
+					inputBuffer[numInputs++] = legalInputs[r][move];
+			}
+			loadState(bits, inputBuffer, numInputs, false);
+			evaluate(NEXT_CONE);
+			
+			Arrays.fill(bits, 0L);
+			for (int i = 0; i < nextComponents.length; i++) {
+				if (values[nextComponents[i]])
+					bits[i >>> 6] |= 1L << i;
+			}
+			depth++;
 		}
-
-		if (moves != null) {
-			List<GdlTerm> does = toDoes(moves);
-			for (GdlTerm term : does) {
-				Proposition p = propNet.getInputPropositions().get(term);
-				p.setValue(true);
+		
+		for (int r = 0; r < roles.size(); r++) {
+			goals[r] = -1;
+			if (!values[terminalComponent])
+				continue;
+			evaluate(goalCone(r));
+			int[] goalComponents = this.goalComponents[r];
+			for (int i = 0; i < goalComponents.length; i++) {
+				if (values[goalComponents[i]]) {
+					if (goals[r] != -1) {
+						// More than one goal, undefined
+						goals[r] = -1;
+						break;
+					}
+					goals[r] = goalValues[r][i];
+				}
 			}
 		}
+		return depth;
+	}
 
-		propNet.getInitProposition().setValue(false);
-
-		// Propagate the values
-		for (Proposition p : ordering) {
-			if (p.getInputs().size() == 1) {
-				p.setValue(p.getSingleInput().getValue());
+	/**
+	 * Plays LANES random games from state at the same time: every component
+	 * of the propnet holds one bit per game, so each gate advances all of
+	 * them with a single bitwise operation. goals[l][r] is set to the goal of
+	 * role r (in the order of getRoles()) at the end of game l, or to -1 if
+	 * that game was cut off after depthLimit moves or its goal is undefined.
+	 * A negative depthLimit plays all games to the end. Each move costs one
+	 * pass through the propnet, and the games still playing are cut off as
+	 * well once setDepthChargesStopped(true) is called.
+	 * 
+	 * Does not touch the state loaded for the other queries.
+	 * 
+	 * @return the number of games that reached a terminal state
+	 */
+	public int performDepthCharges(MachineState state, int depthLimit, Random random, int[][] goals) {
+		long[] lanes = compiled.getLanes();
+		long[] bits = toBits(state);
+		for (int i = 0; i < baseComponents.length; i++)
+			lanes[baseComponents[i]] = (bits[i >>> 6] & (1L << i)) != 0 ? -1L : 0L;
+		lanes[initComponent] = 0L;
+		
+		long playing = -1L;
+		int terminated = 0;
+		for (int depth = 0; ; depth++) {
+			// Terminal and legal propositions do not depend on the inputs
+			for (int c : inputComponents)
+				lanes[c] = 0L;
+			compiled.propagateLanes(CompiledPropNet.STATE_PART);
+			
+			long terminal = lanes[terminalComponent] & playing;
+			if (terminal != 0) {
+				setLaneGoals(terminal, goals);
+				terminated += Long.bitCount(terminal);
+				playing &= ~terminal;
+			}
+			if (playing == 0 || depth == depthLimit || depthChargesStopped)
+				break;
+			
+			// A random legal move for every role in every game still playing
+			for (int r = 0; r < roles.size(); r++) {
+				int[] legals = legalComponents[r];
+				Arrays.fill(laneMoveCounts, 0);
+				for (int i = 0; i < legals.length; i++) {
+					long word = lanes[legals[i]] & playing;
+					while (word != 0) {
+						int lane = Long.numberOfTrailingZeros(word);
+						if (random.nextInt(++laneMoveCounts[lane]) == 0)
+							laneMoves[lane] = i;
+						word &= word - 1;
+					}
+				}
+				for (int lane = 0; lane < LANES; lane++) {
+					if (laneMoveCounts[lane] > 0 && legalInputs[r][laneMoves[lane]] >= 0)
+						lanes[legalInputs[r][laneMoves[lane]]] |= 1L << lane;
+				}
 			}
+			compiled.propagateLanes(CompiledPropNet.MOVE_PART);
+			for (int i = 0; i < baseComponents.length; i++)
+				lanes[baseComponents[i]] = lanes[nextComponents[i]];
 		}
+		
+		for (int lane = 0; lane < LANES; lane++) {
+			if ((playing & (1L << lane)) != 0)
+				Arrays.fill(goals[lane], -1);
+		}
+		return terminated;
+	}
+	
+	/**
+	 * Makes performDepthCharge() and performDepthCharges() stop after the
+	 * move they are at, until called with false. Meant for a timeout handler
+	 * on another thread.
+	 */
+	public void setDepthChargesStopped(boolean stopped) {
+		depthChargesStopped = stopped;
+	}
+	
+	private void setLaneGoals(long terminal, int[][] goals) {
+		long[] lanes = compiled.getLanes();
+		for (int r = 0; r < roles.size(); r++) {
+			long undefined = terminal, ambiguous = 0L;
+			for (int i = 0; i < goalComponents[r].length; i++) {
+				long word = lanes[goalComponents[r][i]] & terminal;
+				ambiguous |= word & ~undefined;
+				undefined &= ~word;
+				while (word != 0) {
+					int lane = Long.numberOfTrailingZeros(word);
+					goals[lane][r] = goalValues[r][i];
+					word &= word - 1;
+				}
+			}
+			// No goal or more than one
+			undefined |= ambiguous;
+			while (undefined != 0) {
+				goals[Long.numberOfTrailingZeros(undefined)][r] = -1;
+				undefined &= undefined - 1;
+			}
+		}
+	}
+	
+	/**
+	 * Computes the next state given state and, for every role in the order of
+	 * getRoles(), the index of its move in the legal moves of that role. This
+	 * skips the lookup of the moves altogether.
+	 */
+	public BitSetMachineState getNextState(MachineState state, int[] moveIndices) {
+		int numInputs = 0;
+		for (int r = 0; r < moveIndices.length; r++) {
+			int input = legalInputs[r][moveIndices[r]];
+			if (input >= 0)
+				inputBuffer[numInputs++] = input;
+		}
+		loadState(toBits(state), inputBuffer, numInputs, false);
+		savedState = null;
+		return getNextStateFromBase();
+	}
+
+	/**
+	 * Loads state and moves into the value vector of the compiled propnet and
+	 * propagates. The Proposition objects are left alone, they are only used
+	 * by the latch and factoring analysis.
+	 */
+	public void updateState(MachineState state, List<Move> moves) {
+		int numInputs = moves == null ? 0 : toInputs(moves);
+		loadState(toBits(state), inputBuffer, numInputs, false);
 
 		// When moves = null, clear the cache since it's already one move ahead
 		// of the state.
@@ -487,99 +945,229 @@ public class DumplingPropNetStateMachine extends StateMachine {
 			savedState = state;
 	}
 
+	/*
+	 * Sets the base, input and init propositions; the rest of the values is
+	 * brought up to date by the queries that read it (see evaluate()).
+	 * Incrementally, only the sources that differ from the previously loaded
+	 * ones are touched, and only what they feed into is recomputed, once a
+	 * query reads it; states visited in a row during search and rollouts
+	 * tend to differ in a handful of bases.
+	 */
+	private void loadState(long[] bits, int[] inputs, int numInputs, boolean init) {
+		loadedKey ^= keyDifference(bits, loadedBits);
+		if (incrementalPropagation) {
+			for (int w = 0; w < bits.length; w++) {
+				long diff = bits[w] ^ loadedBits[w];
+				while (diff != 0) {
+					int i = (w << 6) + Long.numberOfTrailingZeros(diff);
+					compiled.set(baseComponents[i], (bits[w] & (1L << i)) != 0);
+					diff &= diff - 1;
+				}
+				loadedBits[w] = bits[w];
+			}
+			for (int i = 0; i < numLoadedInputs; i++)
+				compiled.set(loadedInputs[i], false);
+			for (int i = 0; i < numInputs; i++)
+				compiled.set(inputs[i], true);
+			compiled.set(initComponent, init);
+			Arrays.fill(evaluatedCones, false);
+			lazyState = true;
+			lazyIncremental = true;
+		} else {
+			for (int i = 0; i < baseComponents.length; i++)
+				values[baseComponents[i]] = (bits[i >>> 6] & (1L << i)) != 0;
+			System.arraycopy(bits, 0, loadedBits, 0, bits.length);
+			for (int i = 0; i < numLoadedInputs; i++)
+				values[loadedInputs[i]] = false;
+			for (int i = 0; i < numInputs; i++)
+				values[inputs[i]] = true;
+			values[initComponent] = init;
+			if (compiled.hasEvaluator()) {
+				compiled.propagate();
+				lazyState = false;
+			} else {
+				compiled.invalidate();
+				Arrays.fill(evaluatedCones, false);
+				lazyState = true;
+				lazyIncremental = false;
+			}
+		}
+		System.arraycopy(inputs, 0, loadedInputs, 0, numInputs);
+		numLoadedInputs = numInputs;
+	}
+	
+	/*
+	 * Writes the input components of a joint move into inputBuffer, returns
+	 * how many there are
+	 */
+	private int toInputs(List<Move> moves) {
+		int numInputs = 0;
+		for (int r = 0; r < roles.size() && r < moves.size(); r++) {
+			Integer index = moveIndices.get(r).get(moves.get(r));
+			int input = index == null ? -1 : legalInputs[r][index];
+			if (input < 0) {
+				// Not one of the legal moves we know of
+				GdlTerm does = ProverQueryBuilder.toDoes(roles.get(r), moves.get(r)).toTerm();
+				input = compiled.getIndex(propNet.getInputPropositions().get(does));
+			}
+			inputBuffer[numInputs++] = input;
+		}
+		return numInputs;
+	}
+	
+	/*
+	 * Makes sure the components of a cone are up to date for the loaded state
+	 */
+	private void evaluate(int cone) {
+		if (lazyState && !evaluatedCones[cone]) {
+			if (!lazyIncremental)
+				compiled.propagate(cones[cone]);
+			else if (cone == FULL_CONE)
+				compiled.propagateChanges();
+			else
+				compiled.propagateChanges(cones[cone], coneMasks[cone]);
+			evaluatedCones[cone] = true;
+		}
+	}
+	
+	private int goalCone(int roleIndex) {
+		return FULL_CONE + 1 + roleIndex;
+	}
+	
+	private int legalCone(int roleIndex) {
+		return FULL_CONE + 1 + roles.size() + roleIndex;
+	}
+	
+	/*
+	 * The cones of the terminal, next state, goal and legal queries
+	 */
+	private void computeCones() {
+		cones = new int[FULL_CONE + 1 + 2 * roles.size()][];
+		cones[TERMINAL_CONE] = compiled.getCone(new int[] { terminalComponent });
+		cones[NEXT_CONE] = compiled.getCone(nextComponents);
+		cones[FULL_CONE] = compiled.getOrder();
+		for (int r = 0; r < roles.size(); r++) {
+			cones[goalCone(r)] = compiled.getCone(goalComponents[r]);
+			cones[legalCone(r)] = compiled.getCone(legalComponents[r]);
+		}
+		evaluatedCones = new boolean[cones.length];
+		coneMasks = new boolean[cones.length][];
+		for (int i = 0; i < cones.length; i++) {
+			if (i != FULL_CONE)
+				coneMasks[i] = compiled.getConeMask(cones[i]);
+		}
+	}
+	
+	/*
+	 * The XOR of the Zobrist keys of the bases that differ between a and b
+	 */
+	private long keyDifference(long[] a, long[] b) {
+		long key = 0;
+		for (int w = 0; w < a.length; w++) {
+			long diff = a[w] ^ b[w];
+			while (diff != 0) {
+				key ^= zobristKeys[(w << 6) + Long.numberOfTrailingZeros(diff)];
+				diff &= diff - 1;
+			}
+		}
+		return key;
+	}
+	
+	long[] toBits(MachineState state) {
+		if (state instanceof BitSetMachineState
+				&& ((BitSetMachineState) state).getSentences() == baseSentences)
+			return ((BitSetMachineState) state).getBits();
+		
+		long[] bits = new long[loadedBits.length];
+		for (GdlSentence s : state.getContents()) {
+			int i = baseIndices.get(s);
+			bits[i >>> 6] |= 1L << i;
+		}
+		return bits;
+	}
+	
 	/**
-	 * This should compute the topological ordering of propositions. Each
-	 * component is either a proposition, logical gate, or transition. Logical
-	 * gates and transitions only have propositions as inputs.
-	 * 
-	 * The base propositions and input propositions should always be exempt from
-	 * this ordering.
-	 * 
-	 * The base propositions values are set from the MachineState that
-	 * operations are performed on and the input propositions are set from the
-	 * Moves that operations are performed on as well (if any).
+	 * Turns the PropNetOptimizer passes in initialize() on (the default) or
+	 * off, must be called before initialize().
+	 */
+	public void setPropNetOptimization(boolean optimizePropNet) {
+		this.optimizePropNet = optimizePropNet;
+	}
+	
+	/**
+	 * Switches between differential propagation from the previously loaded
+	 * state (the default) and recomputing the whole propnet on every state.
+	 */
+	public void setIncrementalPropagation(boolean incrementalPropagation) {
+		this.incrementalPropagation = incrementalPropagation;
+	}
+	
+	public boolean isIncrementalPropagation() {
+		return incrementalPropagation;
+	}
+	
+	/**
+	 * Generates, compiles and loads straight-line code for the propnet (see
+	 * PropNetCodeGenerator). It takes over the full propagations: every one
+	 * without incremental propagation, with it only the first after the
+	 * value vector was overwritten, so that loading a state still recomputes
+	 * just what changed. performDepthCharges() always uses it. Gives up
+	 * after timeLimit ms, interrupting the compiler thread, and keeps using
+	 * the interpreter. Copies and factors made afterwards use the generated
+	 * code as well.
 	 * 
-	 * @return The order in which the truth values of propositions need to be
-	 *         set.
+	 * @return whether the generated code is in use
 	 */
-	public List<Proposition> getOrdering() {
-		// List to contain the topological ordering.
-		List<Proposition> order = new LinkedList<Proposition>();
-
-		// All of the propositions in the PropNet.
-		List<Proposition> propositions = new ArrayList<Proposition>(
-				propNet.getPropositions());
-
-		/*
-		 * We maintain a set of propositions that we have visited, and a set of
-		 * unvisited propositions. Initially, we add the base and input
-		 * propositions to the visited set. Next, we go through all unvisited
-		 * propositions and check for which proposition all inputs have already
-		 * been visited. We then add that proposition both to the visited set
-		 * and to the order
-		 */
-		Set<Proposition> visitedPropositions = new HashSet<Proposition>();
-		Set<Proposition> unvisitedPropositions = new HashSet<Proposition>();
-		
-
-		visitedPropositions.addAll(basePropositions.values());
-		visitedPropositions.addAll(inputPropositions.values());
-		visitedPropositions.add(propNet.getInitProposition()); 
-
-		unvisitedPropositions.addAll(propositions);
-		unvisitedPropositions.removeAll(visitedPropositions);
+	public boolean generateEvaluator(long timeLimit) {
+		final CompiledPropNet net = compiled;
+		final PropNetEvaluator[] result = new PropNetEvaluator[1];
+		Thread generator = new Thread() {
+			@Override
+			public void run() {
+				result[0] = PropNetCodeGenerator.generate(net);
+			}
+		};
+		generator.setDaemon(true);
 		
-		while (!unvisitedPropositions.isEmpty()) {	
-			if (isTimeout) 
-				return null;
-			
-			// Pick next proposition whose inputs have all been visited
-			Proposition nextProposition = null;			
-			for (Proposition unvisitedProp : unvisitedPropositions) {
-				// Calculate all propositional inputs of unvisitedProp
-				Set<Proposition> inputs = new HashSet<Proposition>();
-				Set<Component> toCheck = new HashSet<Component>();
-				toCheck.add(unvisitedProp);
-				while (!toCheck.isEmpty()) {
-				
-					Component comp = toCheck.iterator().next();
-					toCheck.remove(comp);
-					for (Component input : comp.getInputs()) {
-						if (input instanceof Proposition)
-							inputs.add((Proposition) input);
-						else
-							toCheck.add(input);
-					}
-				}
-				
-				if (visitedPropositions.containsAll(inputs)) {
-					nextProposition = unvisitedProp;
-					break;
-				}
-			}			
+		long start = System.currentTimeMillis();
+		generator.start();
+		try {
+			generator.join(Math.max(1, timeLimit));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
 		
-			// Add to visited set and remove from unvisited set
-			visitedPropositions.add(nextProposition);
-			unvisitedPropositions.remove(nextProposition);
-
-			// Add to order
-			order.add(nextProposition);
+		if (generator.isAlive() || result[0] == null) {
+			generator.interrupt();
+			System.out.println("Not using generated propnet code");
+			return false;
 		}
-	
-		return order;
+		compiled.setEvaluator(result[0]);
+		savedState = null;
+		System.out.println("Generated propnet code in " + (System.currentTimeMillis() - start) + " ms");
+		return true;
 	}
-
+	
 	/* Already implemented for you */
 	@Override
 	public Move getMoveFromSentence(GdlSentence sentence) {
 		return new PropNetMove(sentence);
 	}
 
-	/* Already implemented for you */
 	@Override
 	public MachineState getMachineStateFromSentenceList(
 			Set<GdlSentence> sentenceList) {
-		return new PropNetMachineState(sentenceList);
+		if (baseIndices == null)
+			return new PropNetMachineState(sentenceList);
+		
+		long[] bits = new long[BitSetMachineState.numWords(baseArray.length)];
+		for (GdlSentence s : sentenceList) {
+			Integer index = baseIndices.get(s);
+			if (index == null)
+				return new PropNetMachineState(sentenceList);	// not a base sentence, keep it in GDL form
+			bits[index >>> 6] |= 1L << index;
+		}
+		return new BitSetMachineState(bits, baseSentences, keyDifference(bits, new long[bits.length]));
 	}
 
 	/* Already implemented for you */
@@ -593,32 +1181,17 @@ public class DumplingPropNetStateMachine extends StateMachine {
 	public List<Role> getRoles() {
 		return roles;
 	}
-
-	/* Helper methods */
-
+	
 	/**
-	 * The Input propositions are indexed by (does ?player ?action).
-	 * 
-	 * This translates a list of Moves (backed by a sentence that is simply
-	 * ?action) into GdlTerms that can be used to get Propositions from
-	 * inputPropositions. and accordingly set their values etc. This is a naive
-	 * implementation when coupled with setting input values, feel free to
-	 * change this for a more efficient implementation.
-	 * 
-	 * @param moves
-	 * @return
+	 * The key of the game description this machine was initialized with,
+	 * the same in every match of the game.
 	 */
-	private List<GdlTerm> toDoes(List<Move> moves) {
-		List<GdlTerm> doeses = new ArrayList<GdlTerm>(moves.size());
-		Map<Role, Integer> roleIndices = getRoleIndices();
-
-		for (int i = 0; i < roles.size() && i < moves.size(); i++) {
-			int index = roleIndices.get(roles.get(i));
-			doeses.add(ProverQueryBuilder.toDoes(roles.get(i), moves.get(index)).toTerm());
-		}
-		return doeses;
+	public long getGameKey() {
+		return gameKey;
 	}
 
+	/* Helper methods */
+
 	/**
 	 * Takes in a Legal Proposition and returns the appropriate corresponding
 	 * Move
@@ -663,6 +1236,126 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		return new PropNetMachineState(contents);
 	}
 	
+	/**
+	 * Builds the next state from the transitions feeding the base
+	 * propositions in the compiled value vector, without going through GDL
+	 * sentences.
+	 * 
+	 * @return BitSetMachineState
+	 */
+	public BitSetMachineState getNextStateFromBase() {
+		evaluate(NEXT_CONE);
+		long[] bits = new long[BitSetMachineState.numWords(baseArray.length)];
+		for (int i = 0; i < nextComponents.length; i++) {
+			if (values[nextComponents[i]])
+				bits[i >>> 6] |= 1L << i;
+		}
+		return new BitSetMachineState(bits, baseSentences, loadedKey ^ keyDifference(bits, loadedBits));
+	}
+	
+	/*
+	 * Fixes the order of the base propositions, which is the bit order of
+	 * every BitSetMachineState created by this state machine
+	 */
+	private void indexBasePropositions() {
+		baseArray = new Proposition[basePropositions.size()];
+		baseSentences = new GdlSentence[baseArray.length];
+		baseIndices = new HashMap<GdlSentence, Integer>();
+		int i = 0;
+		for (Proposition p : basePropositions.values()) {
+			baseArray[i] = p;
+			baseSentences[i] = p.getName().toSentence();
+			baseIndices.put(baseSentences[i], i);
+			i++;
+		}
+		zobristKeys = new long[baseArray.length];
+		for (i = 0; i < baseArray.length; i++)
+			zobristKeys[i] = Canonicalizer.sentenceKey(baseSentences[i]);
+	}
+	
+	/*
+	 * Flattens the propnet and records where the interesting propositions
+	 * ended up in the value vector
+	 */
+	private void compilePropNet() {
+		Set<Proposition> sources = new HashSet<Proposition>();
+		sources.addAll(basePropositions.values());
+		sources.addAll(propNet.getInputPropositions().values());
+		sources.add(initProposition);
+		compiled = new CompiledPropNet(propNet, sources);
+		values = compiled.getValues();
+		loadedBits = new long[BitSetMachineState.numWords(baseArray.length)];
+		loadedKey = 0;
+		loadedInputs = new int[roles.size()];
+		inputBuffer = new int[roles.size()];
+		chargeBits = new long[loadedBits.length];
+		
+		baseComponents = compiled.getIndices(Arrays.asList(baseArray));
+		nextComponents = new int[baseArray.length];
+		for (int i = 0; i < baseArray.length; i++)
+			nextComponents[i] = compiled.getIndex(baseArray[i].getSingleInput());
+		inputComponents = compiled.getIndices(propNet.getInputPropositions().values());
+		initComponent = compiled.getIndex(initProposition);
+		terminalComponent = compiled.getIndex(terminalProposition);
+		
+		roleIndices = new HashMap<Role, Integer>();
+		goalArrays = new Proposition[roles.size()][];
+		goalComponents = new int[roles.size()][];
+		goalValues = new int[roles.size()][];
+		winningGoals = new Proposition[roles.size()];
+		for (int r = 0; r < roles.size(); r++) {
+			roleIndices.put(roles.get(r), r);
+			goalArrays[r] = goalPropositions.get(roles.get(r)).toArray(new Proposition[0]);
+			goalComponents[r] = compiled.getIndices(Arrays.asList(goalArrays[r]));
+			goalValues[r] = new int[goalArrays[r].length];
+			for (int i = 0; i < goalArrays[r].length; i++) {
+				goalValues[r][i] = getGoalValue(goalArrays[r][i]);
+				if (goalValues[r][i] == 100)
+					winningGoals[r] = goalArrays[r][i];
+			}
+		}
+		indexLegalPropositions();
+	}
+	
+	/*
+	 * Indexes legalPropositions by role, and finds the input proposition that
+	 * each legal move sets. Factors call this again once they have picked
+	 * their subset of legal propositions.
+	 */
+	private void indexLegalPropositions() {
+		legalArrays = new Proposition[roles.size()][];
+		legalComponents = new int[roles.size()][];
+		legalMoves = new Move[roles.size()][];
+		moveIndices = new ArrayList<Map<Move, Integer>>(roles.size());
+		legalInputs = new int[roles.size()][];
+		for (int r = 0; r < roles.size(); r++) {
+			List<Proposition> legals = new ArrayList<Proposition>();
+			Set<Proposition> roleLegals = legalPropositions.get(roles.get(r));
+			if (roleLegals != null) {
+				for (Proposition p : roleLegals) {
+					if (p != null)
+						legals.add(p);
+				}
+			}
+			legalArrays[r] = legals.toArray(new Proposition[0]);
+			legalComponents[r] = compiled.getIndices(legals);
+			
+			Map<Move, Integer> indices = new HashMap<Move, Integer>();
+			legalMoves[r] = new Move[legals.size()];
+			legalInputs[r] = new int[legals.size()];
+			for (int i = 0; i < legals.size(); i++) {
+				Move move = getMoveFromProposition(legals.get(i));
+				legalMoves[r][i] = move;
+				indices.put(move, i);
+				GdlTerm does = ProverQueryBuilder.toDoes(roles.get(r), move).toTerm();
+				Proposition input = propNet.getInputPropositions().get(does);
+				legalInputs[r][i] = input == null ? -1 : compiled.getIndex(input);
+			}
+			moveIndices.add(indices);
+		}
+		computeCones();
+	}
+	
 	public PropNetMachineState getStateFromBase2() {
 		Set<GdlSentence> contents = new HashSet<GdlSentence>();
 		for (Proposition p : propNet.getBasePropositions().values()) {
@@ -726,11 +1419,9 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		}
 		
 		for (Component goalComponent : goalComponents) {
-			Set<Proposition> visitedPropositions = new HashSet<Proposition>();
-			
-			stepBackToAllInputs(goalComponent, visitedPropositions);
+			long[] determinants = getDeterminants(getDependencies()[compiled.getIndex(goalComponent)]);
 	
-			Map<GdlTerm, Proposition> inputs = filterInputs(this.inputPropositions, visitedPropositions);
+			Map<GdlTerm, Proposition> inputs = filterInputs(this.inputPropositions, getInputPropositions(determinants));
 	
 			DumplingPropNetStateMachine factor = new DumplingPropNetStateMachine();
 						
@@ -759,12 +1450,18 @@ public class DumplingPropNetStateMachine extends StateMachine {
 	
 			factor.savedState = null;
 			factor.basePropositions = this.basePropositions;
+			factor.baseArray = this.baseArray;
+			factor.baseSentences = this.baseSentences;
+			factor.zobristKeys = this.zobristKeys;
+			factor.gameKey = this.gameKey;
+			factor.baseIndices = this.baseIndices;
 			factor.goalPropositions = this.goalPropositions;
 	
 			factor.initProposition = this.initProposition;
 			factor.terminalProposition = this.terminalProposition;
 	
-			factor.ordering = this.ordering;
+			factor.shareCompiledPropNet(this);
+			factor.indexLegalPropositions();
 
 			factors.add(factor);
 			
@@ -801,6 +1498,7 @@ public class DumplingPropNetStateMachine extends StateMachine {
 			for (Entry<Role, Set<Proposition>> legalEntry : universalLegals.entrySet()) {
 				factor.legalPropositions.get(legalEntry.getKey()).addAll(legalEntry.getValue());
 			}
+			factor.indexLegalPropositions();
 			System.out.println("Found a factor, reduced input propositions from " + this.inputPropositions.size() + " to " + factor.inputPropositions.size());
 			
 			// all the details...
@@ -833,6 +1531,72 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		return factors;
 	}
 	
+	/*
+	 * Lets a factor evaluate on the compiled propnet of the state machine it
+	 * was split from, with a value vector of its own
+	 */
+	private void shareCompiledPropNet(DumplingPropNetStateMachine source) {
+		compiled = source.compiled.copy();
+		values = compiled.getValues();
+		loadedBits = new long[source.loadedBits.length];
+		loadedKey = 0;
+		loadedInputs = new int[roles.size()];
+		inputBuffer = new int[roles.size()];
+		chargeBits = new long[loadedBits.length];
+		incrementalPropagation = source.incrementalPropagation;
+		baseComponents = source.baseComponents;
+		nextComponents = source.nextComponents;
+		inputComponents = source.inputComponents;
+		initComponent = source.initComponent;
+		terminalComponent = source.terminalComponent;
+		roleIndices = source.roleIndices;
+		goalArrays = source.goalArrays;
+		goalComponents = source.goalComponents;
+		goalValues = source.goalValues;
+		winningGoals = source.winningGoals;
+	}
+	
+	/**
+	 * Creates a state machine for another thread. It shares the propnet, the
+	 * indexing and the compiled structure with this one, none of which change
+	 * after initialize(), but has its own values and cached state, so the two
+	 * can be queried concurrently. Each copy must only be used by one thread
+	 * at a time.
+	 * 
+	 * The latch and factoring analysis still works on the values stored in
+	 * the shared Proposition objects and must not run concurrently with
+	 * anything else, isDeadState() included.
+	 */
+	public DumplingPropNetStateMachine copy() {
+		DumplingPropNetStateMachine copy = new DumplingPropNetStateMachine();
+		copy.propNet = propNet;
+		copy.roles = roles;
+		copy.inputPropositions = inputPropositions;
+		copy.basePropositions = basePropositions;
+		copy.initProposition = initProposition;
+		copy.terminalProposition = terminalProposition;
+		copy.legalPropositions = legalPropositions;
+		copy.goalPropositions = goalPropositions;
+		copy.latches = latches;
+		copy.killMasks = killMasks;
+		copy.killComponents = killComponents;
+		copy.baseArray = baseArray;
+		copy.baseSentences = baseSentences;
+		copy.zobristKeys = zobristKeys;
+		copy.gameKey = gameKey;
+		copy.baseIndices = baseIndices;
+		copy.shareCompiledPropNet(this);
+		copy.legalArrays = legalArrays;
+		copy.legalComponents = legalComponents;
+		copy.legalMoves = legalMoves;
+		copy.moveIndices = moveIndices;
+		copy.legalInputs = legalInputs;
+		copy.cones = cones;
+		copy.evaluatedCones = new boolean[cones.length];
+		copy.coneMasks = coneMasks;
+		return copy;
+	}
+	
 	private Or findDisjunction(Component comp) {
 		if (comp instanceof Or) {
 			return (Or)comp;
@@ -885,12 +1649,18 @@ public class DumplingPropNetStateMachine extends StateMachine {
 
 		factor.savedState = null;
 		factor.basePropositions = this.basePropositions;
+		factor.baseArray = this.baseArray;
+		factor.baseSentences = this.baseSentences;
+		factor.zobristKeys = this.zobristKeys;
+		factor.gameKey = this.gameKey;
+		factor.baseIndices = this.baseIndices;
 		factor.goalPropositions = this.goalPropositions;
 
 		factor.initProposition = this.initProposition;
 		factor.terminalProposition = this.terminalProposition;
 
-		factor.ordering = this.ordering;
+		factor.shareCompiledPropNet(this);
+		factor.indexLegalPropositions();
 
 		System.out.println("Found a factor, reduced input propositions from "
 					+ this.inputPropositions.size() + " to "
@@ -898,34 +1668,19 @@ public class DumplingPropNetStateMachine extends StateMachine {
 		return factor;
 	}
 
-	private void stepBackToInputs(Component comp, Set<Proposition> visitedPropositions) {
-		if (comp instanceof Proposition && visitedPropositions.contains((Proposition) comp)) {
-			return;
-		} else if (comp instanceof Proposition) {
-			visitedPropositions.add((Proposition) comp);
-		}
-
-		Set<Component> inputs;
-		if (comp instanceof Or) {
-			inputs = new HashSet<Component>(Arrays.asList(new Component[] { comp.getInputs().iterator().next() }));
-		} else {
-			inputs = comp.getInputs();
-		}
-
-		for (Component inputComp : inputs) {
-			stepBackToInputs(inputComp, visitedPropositions);
-		}
-	}
-	
-	private void stepBackToAllInputs(Component comp, Set<Proposition> visitedPropositions) {
-		if (comp instanceof Proposition && visitedPropositions.contains((Proposition) comp)) {
-			return;
-		} else if (comp instanceof Proposition) {
-			visitedPropositions.add((Proposition) comp);
-		}
-
-		for (Component inputComp : comp.getInputs()) {
-			stepBackToAllInputs(inputComp, visitedPropositions);
+	private void stepBackToInputs(Component start, Set<Proposition> visitedPropositions) {
+		List<Component> stack = new ArrayList<Component>();
+		stack.add(start);
+		while (!stack.isEmpty()) {
+			Component comp = stack.remove(stack.size() - 1);
+			if (comp instanceof Proposition && !visitedPropositions.add((Proposition) comp))
+				continue;
+			
+			// Of an Or, only the first input is followed
+			if (comp instanceof Or)
+				stack.add(comp.getInputs().iterator().next());
+			else
+				stack.addAll(comp.getInputs());
 		}
 	}
 
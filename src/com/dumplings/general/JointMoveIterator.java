@@ -0,0 +1,79 @@
+package com.dumplings.general;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import util.statemachine.Move;
+
+/**
+ * Goes through the cross product of the moves of every role, in the same
+ * order as StateMachine.getLegalJointMoves(), without building it. next()
+ * returns the same list every time, with the moves of the current joint
+ * move written into it, so it has to be copied if it is kept.
+ */
+public class JointMoveIterator implements Iterator<List<Move>> {
+	private final List<List<Move>> legals;
+	/* Index into the moves of every role of the current joint move */
+	private final int[] positions;
+	private final Move[] moves;
+	private final List<Move> jointMove;
+	private boolean started = false;
+	private boolean exhausted;
+
+	/**
+	 * @param legals the moves of every role, in the order of getRoles()
+	 */
+	public JointMoveIterator(List<List<Move>> legals) {
+		this.legals = legals;
+		positions = new int[legals.size()];
+		moves = new Move[legals.size()];
+		jointMove = Arrays.asList(moves);
+		exhausted = false;
+		for (List<Move> roleMoves : legals) {
+			if (roleMoves.isEmpty())
+				exhausted = true;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (exhausted)
+			return false;
+		if (!started)
+			return true;
+		for (int r = 0; r < positions.length; r++) {
+			if (positions[r] + 1 < legals.get(r).size())
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public List<Move> next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+
+		if (!started) {
+			for (int r = 0; r < moves.length; r++)
+				moves[r] = legals.get(r).get(0);
+			started = true;
+		} else {
+			// The last role changes fastest
+			int r = positions.length - 1;
+			while (positions[r] + 1 == legals.get(r).size()) {
+				positions[r] = 0;
+				moves[r] = legals.get(r).get(0);
+				r--;
+			}
+			moves[r] = legals.get(r).get(++positions[r]);
+		}
+		return jointMove;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,79 @@
+package com.dumplings.general;
+
+import java.util.Iterator;
+import java.util.List;
+
+import util.statemachine.MachineState;
+import util.statemachine.Move;
+import util.statemachine.StateMachine;
+import util.statemachine.exceptions.MoveDefinitionException;
+import util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * The next states of a state for a sequence of joint moves, each one only
+ * computed when next() gets to it, so the children a search cuts off are
+ * never computed. On a DumplingPropNetStateMachine the base propositions of
+ * the state are looked up once and every child only propagates the inputs
+ * that differ from what was loaded last.
+ *
+ * next() cannot throw the TransitionDefinitionException of
+ * StateMachine.getNextState(), it is wrapped in an IllegalStateException.
+ * It can be used in a for-each loop, but only once.
+ */
+public class NextStateIterator implements Iterator<MachineState>, Iterable<MachineState> {
+	private final StateMachine stateMachine;
+	private final MachineState state;
+	private final Iterator<List<Move>> jointMoves;
+	private final DumplingPropNetStateMachine propNetMachine;
+	private final long[] bits;
+
+	public NextStateIterator(StateMachine stateMachine, MachineState state, Iterator<List<Move>> jointMoves) {
+		this.stateMachine = stateMachine;
+		this.state = state;
+		this.jointMoves = jointMoves;
+		if (stateMachine instanceof DumplingPropNetStateMachine) {
+			propNetMachine = (DumplingPropNetStateMachine) stateMachine;
+			bits = propNetMachine.toBits(state);
+		} else {
+			propNetMachine = null;
+			bits = null;
+		}
+	}
+
+	/**
+	 * The next states of state for all its joint moves, in the order of
+	 * getLegalJointMoves(state).
+	 */
+	public static NextStateIterator of(StateMachine stateMachine, MachineState state) throws MoveDefinitionException {
+		if (stateMachine instanceof DumplingPropNetStateMachine)
+			return new NextStateIterator(stateMachine, state, ((DumplingPropNetStateMachine) stateMachine).getLegalJointMoveIterator(state));
+		return new NextStateIterator(stateMachine, state, stateMachine.getLegalJointMoves(state).iterator());
+	}
+
+	@Override
+	public Iterator<MachineState> iterator() {
+		return this;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return jointMoves.hasNext();
+	}
+
+	@Override
+	public MachineState next() {
+		List<Move> jointMove = jointMoves.next();
+		if (propNetMachine != null)
+			return propNetMachine.getNextState(bits, jointMove);
+		try {
+			return stateMachine.getNextState(state, jointMove);
+		} catch (TransitionDefinitionException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
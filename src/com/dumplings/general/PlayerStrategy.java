@@ -2,6 +2,7 @@ package com.dumplings.general;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -17,12 +18,17 @@ import util.statemachine.exceptions.MoveDefinitionException;
 import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.strategies.AlphaBeta;
+import com.dumplings.utils.HeapTranspositionTable;
+import com.dumplings.utils.TranspositionTable;
 
 public abstract class PlayerStrategy {
 	protected StateMachine stateMachine;
 	protected AbstractHeuristic heuristic;
 	public MetaGamer metaGamer = new MetaGamer();
-	protected Map<String, Integer> externalCache;
+	protected Map<Long, Integer> externalCache;
+	/* Allocated on the heap on first use, unless one was set */
+	protected TranspositionTable transpositionTable = null;
+	private int transpositionTableSize = TranspositionTable.DEFAULT_SIZE_MB;
 		
 	public PlayerStrategy(StateMachine sm) {
 		this.stateMachine = sm;
@@ -39,6 +45,8 @@ public abstract class PlayerStrategy {
 	public void cleanup() {
 		if (heuristic != null)
 			heuristic.cleanup();
+		if (transpositionTable != null)
+			transpositionTable.clear();
 	}
 	
 	/*
@@ -150,7 +158,50 @@ public abstract class PlayerStrategy {
 		}
 	}
 	
-	public void setExternalCache(Map<String, Integer> cache) {
+	/*
+	 * The next states of state when role plays move, one per joint move of
+	 * the others, computed as the loop gets to them. The propnet state machine
+	 * does not build the joint moves either.
+	 */
+	protected Iterable<MachineState> getNextStates(MachineState state, Role role, Move move) throws MoveDefinitionException {
+		if (stateMachine instanceof DumplingPropNetStateMachine)
+			return getNextStates(state, ((DumplingPropNetStateMachine) stateMachine).getLegalJointMoveIterator(state, role, move));
+		return getNextStates(state, stateMachine.getLegalJointMoves(state, role, move).iterator());
+	}
+	
+	/*
+	 * The next state for each of the joint moves, in order, computed as the
+	 * loop gets to them
+	 */
+	protected Iterable<MachineState> getNextStates(MachineState state, Iterator<List<Move>> jointMoves) {
+		return new NextStateIterator(stateMachine, state, jointMoves);
+	}
+	
+	public void setExternalCache(Map<Long, Integer> cache) {
 		this.externalCache = cache;
 	}
+	
+	/**
+	 * Sets the memory the transposition table may take, in MB. Must be called
+	 * before the first search.
+	 */
+	public void setTranspositionTableSize(int megabytes) {
+		this.transpositionTableSize = megabytes;
+		this.transpositionTable = null;
+	}
+	
+	/**
+	 * Makes the strategy search with the given table, e.g. an
+	 * OffHeapTranspositionTable, or a ConcurrentTranspositionTable
+	 * shared with another strategy.
+	 */
+	public void setTranspositionTable(TranspositionTable table) {
+		this.transpositionTable = table;
+	}
+	
+	protected TranspositionTable getTranspositionTable() {
+		if (transpositionTable == null)
+			transpositionTable = new HeapTranspositionTable(transpositionTableSize);
+		return transpositionTable;
+	}
 }
@@ -0,0 +1,227 @@
+package com.dumplings.general;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Turns a CompiledPropNet into Java source with one assignment per component
+ * in topological order, once over booleans and once over 64 lanes packed in
+ * longs (see CompiledPropNet.propagateLanes(int)), compiles it in memory
+ * with the system Java compiler and loads it as a PropNetEvaluator. Without the interpreter's switch and
+ * index loads the JIT can schedule the gates like any other straight-line
+ * code.
+ *
+ * Methods are split well below the 64KB bytecode limit. Networks too large
+ * for the constant pool of one class are not generated.
+ *
+ * Interrupting the generating thread stops it. javac cannot be cancelled,
+ * so it is stopped the next time it asks the file manager for something.
+ */
+public class PropNetCodeGenerator {
+	/* Roughly the number of array reads that go into one method */
+	private static final int METHOD_WEIGHT = 3000;
+	/* Inputs per && / || chain, deeper expressions make javac recurse too far */
+	private static final int CHAIN_LENGTH = 32;
+	/* Every component index above Short.MAX_VALUE takes a constant pool slot */
+	private static final int MAX_COMPONENTS = 60000;
+
+	private static int classCounter = 0;
+
+	/**
+	 * Generates and loads an evaluator for net, or returns null if that is
+	 * not possible here (no compiler in this JVM, network too big, ...) or
+	 * the thread was interrupted.
+	 */
+	public static PropNetEvaluator generate(CompiledPropNet net) {
+		if (net.size() > MAX_COMPONENTS) {
+			System.out.println("Propnet too large to generate code for (" + net.size() + " components)");
+			return null;
+		}
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null) {
+			System.out.println("No Java compiler available, not generating code");
+			return null;
+		}
+
+		String className;
+		synchronized (PropNetCodeGenerator.class) {
+			className = "GeneratedPropNet" + classCounter++;
+		}
+		try {
+			String code = generateSource(net, className);
+			final Map<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+			StandardJavaFileManager standardManager = compiler.getStandardFileManager(null, null, null);
+			JavaFileManager manager = new ForwardingJavaFileManager<StandardJavaFileManager>(standardManager) {
+				@Override
+				public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse) throws IOException {
+					checkInterrupted();
+					return super.list(location, packageName, kinds, recurse);
+				}
+
+				@Override
+				public JavaFileObject getJavaFileForOutput(Location location, final String name, Kind kind, FileObject sibling) {
+					checkInterrupted();
+					return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+						@Override
+						public OutputStream openOutputStream() {
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							classes.put(name, out);
+							return out;
+						}
+					};
+				}
+			};
+			JavaFileObject source = new SourceFile(className, code);
+			List<String> options = Arrays.asList("-g:none", "-classpath", System.getProperty("java.class.path"));
+			if (!compiler.getTask(null, manager, null, options, null, Arrays.asList(source)).call()) {
+				System.out.println("Compiling the generated propnet failed");
+				return null;
+			}
+
+			ClassLoader loader = new ClassLoader(PropNetEvaluator.class.getClassLoader()) {
+				@Override
+				protected Class<?> findClass(String name) throws ClassNotFoundException {
+					ByteArrayOutputStream out = classes.get(name);
+					if (out == null)
+						throw new ClassNotFoundException(name);
+					byte[] bytes = out.toByteArray();
+					return defineClass(name, bytes, 0, bytes.length);
+				}
+			};
+			return (PropNetEvaluator) loader.loadClass(className).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			// javac may wrap the CancellationException
+			if (Thread.currentThread().isInterrupted())
+				System.out.println("Generating propnet code was interrupted");
+			else
+				System.out.println("Loading the generated propnet failed: " + e);
+			return null;
+		}
+	}
+
+	private static void checkInterrupted() {
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException();
+	}
+
+	static String generateSource(CompiledPropNet net, String className) {
+		StringBuilder methods = new StringBuilder();
+		StringBuilder calls = new StringBuilder();
+		StringBuilder laneMethods = new StringBuilder();
+		StringBuilder stateCalls = new StringBuilder();
+		StringBuilder moveCalls = new StringBuilder();
+		generateMethods(net, net.getOrder(), "p", false, methods, calls);
+		generateMethods(net, net.getPart(CompiledPropNet.STATE_PART), "s", true, laneMethods, stateCalls);
+		generateMethods(net, net.getPart(CompiledPropNet.MOVE_PART), "m", true, laneMethods, moveCalls);
+
+		StringBuilder code = new StringBuilder();
+		code.append("public final class ").append(className)
+				.append(" implements com.dumplings.general.PropNetEvaluator {\n");
+		code.append("\tpublic void propagate(final boolean[] v) {\n");
+		code.append(calls);
+		code.append("\t}\n\n");
+		code.append("\tpublic void propagateLanes(final long[] v, final int part) {\n");
+		code.append("\t\tif (part == ").append(CompiledPropNet.STATE_PART).append(") {\n");
+		code.append(stateCalls);
+		code.append("\t\t} else {\n");
+		code.append(moveCalls);
+		code.append("\t\t}\n");
+		code.append("\t}\n\n");
+		code.append(methods);
+		code.append(laneMethods);
+		code.append("}\n");
+		return code.toString();
+	}
+
+	/*
+	 * The evaluation of the components of order, split into methods named
+	 * prefix and a number, over either one boolean or 64 lanes in a long per
+	 * component
+	 */
+	private static void generateMethods(CompiledPropNet net, int[] order, String prefix, boolean lanes, StringBuilder methods, StringBuilder calls) {
+		byte[] types = net.getTypes();
+		int[] inputOffsets = net.getInputOffsets();
+		int[] inputs = net.getInputs();
+		String not = lanes ? "~" : "!";
+		String and = lanes ? " & " : " && ";
+		String or = lanes ? " | " : " || ";
+		String yes = lanes ? "-1L" : "true";
+		String no = lanes ? "0L" : "false";
+
+		int numMethods = 0;
+		int weight = METHOD_WEIGHT;
+		for (int c : order) {
+			if (weight >= METHOD_WEIGHT) {
+				checkInterrupted();
+				if (numMethods > 0)
+					methods.append("\t}\n\n");
+				methods.append("\tprivate static void ").append(prefix).append(numMethods)
+						.append(lanes ? "(final long[] v) {\n" : "(final boolean[] v) {\n");
+				calls.append("\t\t").append(prefix).append(numMethods).append("(v);\n");
+				numMethods++;
+				weight = 0;
+			}
+
+			int from = inputOffsets[c], to = inputOffsets[c + 1];
+			weight += 1 + to - from;
+			switch (types[c]) {
+			case CompiledPropNet.VIEW:
+				methods.append("\t\tv[").append(c).append("] = v[").append(inputs[from]).append("];\n");
+				break;
+			case CompiledPropNet.NOT:
+				methods.append("\t\tv[").append(c).append("] = ").append(not).append("v[").append(inputs[from]).append("];\n");
+				break;
+			default: // AND, OR
+				boolean isAnd = types[c] == CompiledPropNet.AND;
+				String operator = isAnd ? and : or;
+				if (from == to)
+					methods.append("\t\tv[").append(c).append("] = ").append(isAnd ? yes : no).append(";\n");
+				for (int chain = from; chain < to; chain += CHAIN_LENGTH) {
+					methods.append("\t\tv[").append(c).append("] = ");
+					if (chain > from)
+						methods.append("v[").append(c).append("]").append(operator);
+					for (int j = chain; j < to && j < chain + CHAIN_LENGTH; j++) {
+						if (j > chain)
+							methods.append(operator);
+						methods.append("v[").append(inputs[j]).append("]");
+					}
+					methods.append(";\n");
+				}
+			}
+		}
+		if (numMethods > 0)
+			methods.append("\t}\n\n");
+	}
+
+	private static class SourceFile extends SimpleJavaFileObject {
+		private final String code;
+
+		public SourceFile(String className, String code) {
+			super(URI.create("string:///" + className + Kind.SOURCE.extension), Kind.SOURCE);
+			this.code = code;
+		}
+
+		@Override
+		public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+			return code;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.dumplings.general;
+
+/**
+ * Straight-line evaluation of one CompiledPropNet, implemented by the classes
+ * that PropNetCodeGenerator generates.
+ */
+public interface PropNetEvaluator {
+	/**
+	 * Recomputes every non-source component of values, which is indexed like
+	 * the components of the CompiledPropNet the evaluator was generated for.
+	 */
+	public void propagate(boolean[] values);
+
+	/**
+	 * Same for one part of the components (see
+	 * CompiledPropNet.propagateLanes(int)), with 64 independent values per
+	 * component packed into a long.
+	 */
+	public void propagateLanes(long[] values, int part);
+}
@@ -0,0 +1,151 @@
+package com.dumplings.general;
+
+import com.dumplings.utils.SatSolver;
+
+/**
+ * Tseitin encoding of a CompiledPropNet into a SatSolver, for proving things
+ * about all states rather than testing them one by one. Components are only
+ * encoded on demand, so a query only pays for the cones it touches.
+ *
+ * There are two frames: in frame 0 the base and input propositions are free
+ * variables, in frame 1 every base proposition is the value its transition
+ * had in frame 0, with fresh inputs. The init proposition is false in both.
+ * Propositions and transitions are encoded as the literal of their input,
+ * Not gates as its negation, so only And/Or gates and free sources get
+ * variables.
+ */
+class PropNetFormula {
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] inputs;
+	/* For every base component, the component computing its next value, -1 otherwise */
+	private final int[] nextOf;
+	private final int initComponent;
+
+	private final SatSolver solver = new SatSolver();
+	/* Literal of every component per frame, 0 if not encoded yet */
+	private final int[][] literals;
+	private final int trueLiteral;
+
+	public PropNetFormula(CompiledPropNet net, int[] nextOf, int initComponent) {
+		this.types = net.getTypes();
+		this.inputOffsets = net.getInputOffsets();
+		this.inputs = net.getInputs();
+		this.nextOf = nextOf;
+		this.initComponent = initComponent;
+		literals = new int[2][net.size()];
+		trueLiteral = solver.newVariable();
+		solver.addClause(trueLiteral);
+	}
+
+	/**
+	 * The literal that is true iff component is true in the given frame.
+	 */
+	public int literal(int component, int frame) {
+		if (literals[frame][component] != 0)
+			return literals[frame][component];
+
+		// Post-order over the inputs that are not encoded yet
+		int[] stack = new int[16];
+		int[] stackFrames = new int[16];
+		int top = 0;
+		stack[0] = component;
+		stackFrames[0] = frame;
+		while (top >= 0) {
+			int c = stack[top], f = stackFrames[top];
+			if (literals[f][c] != 0) {
+				top--;
+				continue;
+			}
+
+			int missing = -1, missingFrame = f;
+			if (types[c] == CompiledPropNet.SOURCE) {
+				if (f == 1 && nextOf[c] >= 0 && literals[0][nextOf[c]] == 0) {
+					missing = nextOf[c];
+					missingFrame = 0;
+				}
+			} else {
+				for (int j = inputOffsets[c]; j < inputOffsets[c + 1]; j++) {
+					if (literals[f][inputs[j]] == 0) {
+						missing = inputs[j];
+						break;
+					}
+				}
+			}
+
+			if (missing >= 0) {
+				top++;
+				if (top == stack.length) {
+					int[] larger = new int[stack.length * 2];
+					System.arraycopy(stack, 0, larger, 0, stack.length);
+					stack = larger;
+					larger = new int[stackFrames.length * 2];
+					System.arraycopy(stackFrames, 0, larger, 0, stackFrames.length);
+					stackFrames = larger;
+				}
+				stack[top] = missing;
+				stackFrames[top] = missingFrame;
+			} else {
+				literals[f][c] = encode(c, f);
+				top--;
+			}
+		}
+		return literals[frame][component];
+	}
+
+	/*
+	 * Encodes c, all of whose inputs are encoded already
+	 */
+	private int encode(int c, int frame) {
+		int from = inputOffsets[c], to = inputOffsets[c + 1];
+		switch (types[c]) {
+		case CompiledPropNet.SOURCE:
+			if (c == initComponent)
+				return -trueLiteral;
+			if (frame == 1 && nextOf[c] >= 0)
+				return literals[0][nextOf[c]];
+			return solver.newVariable();
+		case CompiledPropNet.TRUE:
+			return trueLiteral;
+		case CompiledPropNet.FALSE:
+			return -trueLiteral;
+		case CompiledPropNet.VIEW:
+			return literals[frame][inputs[from]];
+		case CompiledPropNet.NOT:
+			return -literals[frame][inputs[from]];
+		default: // AND, OR
+			boolean and = types[c] == CompiledPropNet.AND;
+			if (from == to)
+				return and ? trueLiteral : -trueLiteral;
+			if (to - from == 1)
+				return literals[frame][inputs[from]];
+
+			// And: x -> every input, all inputs -> x. Or is the dual.
+			int x = solver.newVariable();
+			int sign = and ? 1 : -1;
+			int[] all = new int[to - from + 1];
+			all[0] = sign * x;
+			for (int j = from; j < to; j++) {
+				int input = literals[frame][inputs[j]];
+				solver.addClause(-sign * x, sign * input);
+				all[j - from + 1] = -sign * input;
+			}
+			solver.addClause(all);
+			return x;
+		}
+	}
+
+	/**
+	 * Restricts the formula to assignments where literal is true.
+	 */
+	public void assume(int literal) {
+		solver.addClause(literal);
+	}
+
+	/**
+	 * @see SatSolver#solve(long)
+	 */
+	public Boolean solve(long deadline) {
+		return solver.solve(deadline);
+	}
+}
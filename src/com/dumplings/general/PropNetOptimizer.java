@@ -0,0 +1,271 @@
+package com.dumplings.general;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import util.propnet.architecture.Component;
+import util.propnet.architecture.PropNet;
+import util.propnet.architecture.components.And;
+import util.propnet.architecture.components.Constant;
+import util.propnet.architecture.components.Not;
+import util.propnet.architecture.components.Or;
+import util.propnet.architecture.components.Proposition;
+import util.propnet.architecture.components.Transition;
+
+/**
+ * Simplifies a PropNet before it is compiled. The components are changed in
+ * place and a new PropNet is built from what is left:
+ *
+ * - constants are propagated through the gates, so the gates they decide
+ *   disappear and the rest lose their constant inputs
+ * - propositions that only copy their input, and And/Or gates left with a
+ *   single input, are bypassed
+ * - gates of the same type over the same inputs are merged
+ * - components that reach no legal, goal, terminal or base proposition are
+ *   removed
+ *
+ * Base, input, init, legal, goal and terminal propositions are never
+ * removed, so the result describes the same game with the same states.
+ */
+public class PropNetOptimizer {
+	private final PropNet propNet;
+	private final Set<Component> components;
+	/* Propositions the state machine looks up, which have to stay */
+	private final Set<Proposition> kept = new HashSet<Proposition>();
+	private Constant trueConstant = null;
+	private Constant falseConstant = null;
+
+	public static PropNet optimize(PropNet propNet) {
+		long start = System.currentTimeMillis();
+		int before = propNet.getComponents().size();
+		PropNetOptimizer optimizer = new PropNetOptimizer(propNet);
+		int constants = optimizer.propagateConstants();
+		int views = optimizer.collapseViews();
+		int merged = optimizer.mergeGates();
+		int dead = optimizer.removeDeadComponents();
+		PropNet optimized = new PropNet(propNet.getRoles(), optimizer.components);
+		System.out.println("Optimized propnet from " + before + " to " + optimized.getComponents().size()
+				+ " components in " + (System.currentTimeMillis() - start) + " ms (" + constants + " constant, "
+				+ views + " bypassed, " + merged + " merged, " + dead + " dead)");
+		return optimized;
+	}
+
+	private PropNetOptimizer(PropNet propNet) {
+		this.propNet = propNet;
+		components = new HashSet<Component>(propNet.getComponents());
+		kept.addAll(propNet.getBasePropositions().values());
+		kept.addAll(propNet.getInputPropositions().values());
+		for (Set<Proposition> legals : propNet.getLegalPropositions().values())
+			kept.addAll(legals);
+		for (Set<Proposition> goals : propNet.getGoalPropositions().values())
+			kept.addAll(goals);
+		if (propNet.getInitProposition() != null)
+			kept.add(propNet.getInitProposition());
+		if (propNet.getTerminalProposition() != null)
+			kept.add(propNet.getTerminalProposition());
+	}
+
+	/*
+	 * Replaces every component with a known value by one of two shared
+	 * constants, returns how many were replaced
+	 */
+	private int propagateConstants() {
+		Map<Component, Boolean> known = new HashMap<Component, Boolean>();
+		LinkedList<Component> queue = new LinkedList<Component>();
+		for (Component c : components) {
+			Boolean value = null;
+			if (c instanceof Constant)
+				value = c.getValue();
+			else if (c.getInputs().isEmpty() && !kept.contains(c))
+				value = c instanceof And;	// an empty Or and a proposition without input are false
+			if (value != null) {
+				known.put(c, value);
+				queue.add(c);
+			}
+		}
+
+		int replaced = 0;
+		while (!queue.isEmpty()) {
+			Component c = queue.removeFirst();
+			boolean value = known.get(c);
+			Component source = c;
+			if (!kept.contains(c) && c != trueConstant && c != falseConstant) {
+				source = getConstant(value);
+				replace(c, source);
+				replaced++;
+			}
+
+			for (Component output : new ArrayList<Component>(source.getOutputs())) {
+				if (known.containsKey(output) || output instanceof Transition)
+					continue;
+				Boolean outputValue = null;
+				if (output instanceof Not) {
+					outputValue = !value;
+				} else if (output instanceof And || output instanceof Or) {
+					// A controlling input decides the gate, any other is dropped
+					boolean controlling = output instanceof Or;
+					if (value == controlling) {
+						outputValue = controlling;
+					} else {
+						unlink(source, output);
+						if (output.getInputs().isEmpty())
+							outputValue = !controlling;
+					}
+				} else if (output instanceof Proposition) {
+					outputValue = value;
+				}
+				if (outputValue != null) {
+					known.put(output, outputValue);
+					queue.add(output);
+				}
+			}
+		}
+		return replaced;
+	}
+
+	private Constant getConstant(boolean value) {
+		if (value && trueConstant == null) {
+			trueConstant = new Constant(true);
+			components.add(trueConstant);
+		} else if (!value && falseConstant == null) {
+			falseConstant = new Constant(false);
+			components.add(falseConstant);
+		}
+		return value ? trueConstant : falseConstant;
+	}
+
+	/*
+	 * Connects the outputs of propositions that just copy their input, and of
+	 * And/Or gates with one input, to that input instead
+	 */
+	private int collapseViews() {
+		int collapsed = 0;
+		LinkedList<Component> queue = new LinkedList<Component>(components);
+		while (!queue.isEmpty()) {
+			Component c = queue.removeFirst();
+			if (!components.contains(c) || c.getInputs().size() != 1 || kept.contains(c))
+				continue;
+			if (c instanceof Proposition || c instanceof And || c instanceof Or) {
+				Component input = c.getSingleInput();
+				queue.addAll(c.getOutputs());
+				replace(c, input);
+				collapsed++;
+			}
+		}
+		return collapsed;
+	}
+
+	/*
+	 * Merges gates of the same type with the same inputs, in topological
+	 * order so that merging two gates can make their outputs identical too
+	 */
+	private int mergeGates() {
+		Map<List<Object>, Component> gates = new HashMap<List<Object>, Component>();
+		int merged = 0;
+		for (Component c : getTopologicalOrder()) {
+			if (!(c instanceof And || c instanceof Or || c instanceof Not) || c.getInputs().isEmpty())
+				continue;
+			List<Object> key = Arrays.<Object>asList(c.getClass(), new HashSet<Component>(c.getInputs()));
+			Component same = gates.get(key);
+			if (same == null) {
+				gates.put(key, c);
+			} else {
+				replace(c, same);
+				merged++;
+			}
+		}
+		return merged;
+	}
+
+	/*
+	 * The components in an order where every one comes after its inputs,
+	 * ignoring the inputs of base propositions
+	 */
+	private List<Component> getTopologicalOrder() {
+		Set<Proposition> bases = new HashSet<Proposition>(propNet.getBasePropositions().values());
+		Map<Component, Integer> pendingInputs = new HashMap<Component, Integer>();
+		LinkedList<Component> ready = new LinkedList<Component>();
+		for (Component c : components) {
+			int numInputs = bases.contains(c) ? 0 : c.getInputs().size();
+			if (numInputs == 0)
+				ready.add(c);
+			else
+				pendingInputs.put(c, numInputs);
+		}
+
+		List<Component> order = new ArrayList<Component>(components.size());
+		while (!ready.isEmpty()) {
+			Component c = ready.removeFirst();
+			order.add(c);
+			for (Component output : c.getOutputs()) {
+				Integer pending = pendingInputs.get(output);
+				if (pending == null)
+					continue;
+				if (pending == 1) {
+					pendingInputs.remove(output);
+					ready.add(output);
+				} else {
+					pendingInputs.put(output, pending - 1);
+				}
+			}
+		}
+		return order;
+	}
+
+	/*
+	 * Removes everything the kept propositions do not depend on
+	 */
+	private int removeDeadComponents() {
+		Set<Component> live = new HashSet<Component>();
+		LinkedList<Component> queue = new LinkedList<Component>(kept);
+		while (!queue.isEmpty()) {
+			Component c = queue.removeFirst();
+			if (live.add(c))
+				queue.addAll(c.getInputs());
+		}
+
+		int removed = 0;
+		for (Component c : new ArrayList<Component>(components)) {
+			if (!live.contains(c)) {
+				remove(c);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/*
+	 * Moves the outputs of c to replacement and removes c
+	 */
+	private void replace(Component c, Component replacement) {
+		for (Component output : new ArrayList<Component>(c.getOutputs())) {
+			unlink(c, output);
+			link(replacement, output);
+		}
+		remove(c);
+	}
+
+	private void remove(Component c) {
+		for (Component input : new ArrayList<Component>(c.getInputs()))
+			unlink(input, c);
+		for (Component output : new ArrayList<Component>(c.getOutputs()))
+			unlink(c, output);
+		components.remove(c);
+	}
+
+	private static void link(Component input, Component output) {
+		input.addOutput(output);
+		output.addInput(input);
+	}
+
+	private static void unlink(Component input, Component output) {
+		input.removeOutput(output);
+		output.removeInput(input);
+	}
+}
@@ -12,15 +12,19 @@ import util.statemachine.exceptions.MoveDefinitionException;
 import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.AbstractHeuristic;
+import com.dumplings.general.DumplingPropNetStateMachine;
+import com.dumplings.general.NextStateIterator;
 import com.dumplings.general.PlayerHeuristic;
 
 public class FocusedMonteCarlo extends AbstractHeuristic implements PlayerHeuristic {
 	private StateMachine stateMachine;
 	private Random generator = new Random();
 	private int numSamples = 4;
+	private int[] goals = null;
 	
 	public FocusedMonteCarlo(StateMachine sm) {
 		stateMachine = sm;
+		stopDepthChargesOnTimeout(sm);
 	}
 	
 	public void setSampleSize(int size) {
@@ -32,13 +36,11 @@ public class FocusedMonteCarlo extends AbstractHeuristic implements PlayerHeuris
 		int score = 0;
 		// First decide which next state to apply MonteCarlo to
 		// Reasoning: MonteCarlo will be more accurate for the next state which has more focus
-		List<List<Move>> allMoves= stateMachine.getLegalJointMoves(state);
 		int focus = Integer.MAX_VALUE;
-		for (List<Move> move : allMoves) {
+		for (MachineState nextState : NextStateIterator.of(stateMachine, state)) {
 			if (stopExecution)
 				return null;
 			
-			MachineState nextState = stateMachine.getNextState(state, move);
 			// Get mobility of nextState
 			int newMobility = stateMachine.getLegalMoves(nextState, role).size();
 			if (newMobility < focus) {
@@ -49,6 +51,25 @@ public class FocusedMonteCarlo extends AbstractHeuristic implements PlayerHeuris
 		if (stateMachine.isTerminal(state))
 			return stateMachine.getGoal(state, role);
 		
+		if (stateMachine instanceof DumplingPropNetStateMachine) {
+			// Same depth charges without building the states in between
+			DumplingPropNetStateMachine propNetMachine = (DumplingPropNetStateMachine) stateMachine;
+			if (goals == null)
+				goals = new int[propNetMachine.getRoles().size()];
+			int roleIndex = propNetMachine.getRoleIndices().get(role);
+			for (int i = 0; i < numSamples; i++) {
+				if (stopExecution)
+					return i == 0 ? null : score / i;
+				propNetMachine.performDepthCharge(state, -1, generator, goals);
+				if (stopExecution)
+					return i == 0 ? null : score / i;	// The charge was cut off, its goals are -1
+				if (goals[roleIndex] < 0)
+					throw new GoalDefinitionException(state, role);
+				score += goals[roleIndex];
+			}
+			return score / numSamples;
+		}
+		
 		for (int i = 0; i < numSamples; i++) {
 			MachineState currentState = state;
 			while (!stateMachine.isTerminal(currentState)) {
@@ -59,7 +80,7 @@ public class FocusedMonteCarlo extends AbstractHeuristic implements PlayerHeuris
 						return score / i;	// Return average score that we have seen so far
 				}
 				
-				allMoves = stateMachine.getLegalJointMoves(currentState);
+				List<List<Move>> allMoves = stateMachine.getLegalJointMoves(currentState);
 				List<Move> randomMoves = allMoves.get(generator.nextInt(allMoves.size()));
 				currentState = stateMachine.getNextState(currentState, randomMoves);
 			}
@@ -1,9 +1,6 @@
 package com.dumplings.heuristics;
 
-import java.util.List;
-
 import util.statemachine.MachineState;
-import util.statemachine.Move;
 import util.statemachine.Role;
 import util.statemachine.StateMachine;
 import util.statemachine.exceptions.GoalDefinitionException;
@@ -11,6 +8,7 @@ import util.statemachine.exceptions.MoveDefinitionException;
 import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.AbstractHeuristic;
+import com.dumplings.general.NextStateIterator;
 import com.dumplings.general.PlayerHeuristic;
 
 public class MobilitySampling extends AbstractHeuristic implements PlayerHeuristic {
@@ -28,18 +26,19 @@ public class MobilitySampling extends AbstractHeuristic implements PlayerHeurist
 				return null;
 			}
 		
-			List<List<Move>> allMoves= stateMachine.getLegalJointMoves(currentState);
-			List<Move> nextMove = null; int mobility = Integer.MIN_VALUE;
-			for (List<Move> move : allMoves) {
-				MachineState nextState = stateMachine.getNextState(currentState, move);
+			MachineState mostMobile = null; int mobility = Integer.MIN_VALUE;
+			for (MachineState nextState : NextStateIterator.of(stateMachine, currentState)) {
+				if (stopExecution)
+					return null;
+				
 				// Get mobility of nextState
 				int newMobility = stateMachine.getLegalMoves(nextState, role).size();
 				if (newMobility > mobility) {
-					nextMove = move;
+					mostMobile = nextState;
 					mobility = newMobility;
 				}
 			}
-			currentState = stateMachine.getNextState(currentState, nextMove);
+			currentState = mostMobile;
 		}
 		return stateMachine.getGoal(currentState, role);
 	}
@@ -1,6 +1,7 @@
 package com.dumplings.heuristics;
 
 import java.util.List;
+import java.util.Random;
 
 import util.statemachine.MachineState;
 import util.statemachine.Move;
@@ -11,18 +12,26 @@ import util.statemachine.exceptions.MoveDefinitionException;
 import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.AbstractHeuristic;
+import com.dumplings.general.DumplingPropNetStateMachine;
 import com.dumplings.general.PlayerHeuristic;
 
 public class MonteCarloDepthLimit extends AbstractHeuristic implements PlayerHeuristic {
 	private StateMachine stateMachine;
 	private int numSamples = 1;
 	private int maxDepth = Integer.MAX_VALUE;
+	private Random random = new Random();
+	private int[][] laneGoals = null;
+	private int[] chargeGoals = null;
 	
 	public MonteCarloDepthLimit(StateMachine sm) {
 		stateMachine = sm;
+		stopDepthChargesOnTimeout(sm);
 	}
 	@Override
-	public void setStateMachine(StateMachine stateMachine) { this.stateMachine = stateMachine; }
+	public void setStateMachine(StateMachine stateMachine) {
+		this.stateMachine = stateMachine;
+		stopDepthChargesOnTimeout(stateMachine);
+	}
 	
 	public void setSampleSize(int size) {
 		numSamples = size;
@@ -31,6 +40,9 @@ public class MonteCarloDepthLimit extends AbstractHeuristic implements PlayerHeu
 	
 	@Override
 	public Integer getScore(MachineState state, Role role) throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException {
+		if (stateMachine instanceof DumplingPropNetStateMachine)
+			return getBatchedScore((DumplingPropNetStateMachine) stateMachine, state, role);
+		
 		Integer score = null;
 		int numUsefulSamples = 0;
 		//System.out.println("heuristic used");
@@ -66,6 +78,59 @@ public class MonteCarloDepthLimit extends AbstractHeuristic implements PlayerHeu
 			return 99;
 		return score;
 	}
+	
+	/*
+	 * Same as above, numSamples games, but as many of them as possible
+	 * DumplingPropNetStateMachine.LANES at a time, in one pass through the
+	 * propnet per move, and the rest one at a time, which only propagates
+	 * what changes. A batch or game that a timeout cuts off is left out: the
+	 * games of it that did end are the shortest ones.
+	 */
+	private Integer getBatchedScore(DumplingPropNetStateMachine propNetMachine, MachineState state, Role role) {
+		int numRoles = propNetMachine.getRoles().size();
+		int roleIndex = propNetMachine.getRoleIndices().get(role);
+		
+		int score = 0, numUsefulSamples = 0;
+		for (int i = 0; i < numSamples; ) {
+			if (stopExecution)
+				break;
+			if (numSamples - i >= DumplingPropNetStateMachine.LANES) {
+				if (laneGoals == null)
+					laneGoals = new int[DumplingPropNetStateMachine.LANES][numRoles];
+				propNetMachine.performDepthCharges(state, maxDepth, random, laneGoals);
+				if (stopExecution)
+					break;
+				for (int[] goals : laneGoals) {
+					// Only the ones that got to the end before max depth
+					if (goals[roleIndex] >= 0) {
+						score += goals[roleIndex];
+						numUsefulSamples++;
+					}
+				}
+				i += DumplingPropNetStateMachine.LANES;
+			} else {
+				if (chargeGoals == null)
+					chargeGoals = new int[numRoles];
+				propNetMachine.performDepthCharge(state, maxDepth, random, chargeGoals);
+				if (stopExecution)
+					break;
+				if (chargeGoals[roleIndex] >= 0) {
+					score += chargeGoals[roleIndex];
+					numUsefulSamples++;
+				}
+				i++;
+			}
+		}
+		if (numUsefulSamples == 0)
+			return null;
+		score = score / numUsefulSamples;
+		// never ever override forced wins or losses
+		if (score == 0)
+			return 1;
+		if (score == 100)
+			return 99;
+		return score;
+	}
 
 	@Override
 	public String toString() {
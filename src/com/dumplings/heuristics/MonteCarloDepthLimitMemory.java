@@ -21,7 +21,7 @@ public class MonteCarloDepthLimitMemory extends AbstractHeuristic implements Pla
 	private StateMachine stateMachine;
 	private int numSamples = 1;
 	private int maxDepth = Integer.MAX_VALUE;
-	private Set<String> stateMoveCache = new HashSet<String>();
+	private Set<Long> stateMoveCache = new HashSet<Long>();
 	
 	
 	public MonteCarloDepthLimitMemory(StateMachine sm) {
@@ -56,9 +56,9 @@ public class MonteCarloDepthLimitMemory extends AbstractHeuristic implements Pla
 				List<Move> randomMoves = null;
 				for (int mi = 0; mi < allMoves.size(); mi++) {
 					randomMoves = allMoves.get(randGen.nextInt(allMoves.size()));
-					String stateMovesString = Canonicalizer.stateMovesString(state, randomMoves);
-					if (!this.stateMoveCache.contains(stateMovesString)) {
-						this.stateMoveCache.add(stateMovesString);
+					long stateMovesKey = Canonicalizer.stateMovesKey(state, randomMoves);
+					if (!this.stateMoveCache.contains(stateMovesKey)) {
+						this.stateMoveCache.add(stateMovesKey);
 						break;
 					}
 				}
@@ -11,6 +11,7 @@ import util.statemachine.exceptions.MoveDefinitionException;
 import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.AbstractHeuristic;
+import com.dumplings.general.DumplingPropNetStateMachine;
 import com.dumplings.general.PlayerHeuristic;
 
 public class OpponentMobility extends AbstractHeuristic implements PlayerHeuristic {
@@ -31,7 +32,12 @@ public class OpponentMobility extends AbstractHeuristic implements PlayerHeurist
 		int score = Math.min(sum / moveList.size(), 100);
 		*/
 		
-		int score = Math.min(stateMachine.getLegalJointMoves(state, role, moveList.get(0)).size(), 100);
+		int jointMoves;
+		if (stateMachine instanceof DumplingPropNetStateMachine)
+			jointMoves = ((DumplingPropNetStateMachine) stateMachine).getLegalJointMoveCount(state, role, moveList.get(0));
+		else
+			jointMoves = stateMachine.getLegalJointMoves(state, role, moveList.get(0)).size();
+		int score = Math.min(jointMoves, 100);
 		//System.out.println("OpponentMobiility score: " + score);
 		return score;
 	}
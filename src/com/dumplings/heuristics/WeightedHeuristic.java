@@ -39,6 +39,14 @@ public class WeightedHeuristic extends AbstractHeuristic {
 		return score;
 	}
 
+	@Override
+	public void reset() {
+		super.reset();
+		for (AbstractHeuristic heuristic : weightMap.keySet()) {
+			heuristic.reset();
+		}
+	}
+	
 	@Override
 	public void onTimeout() {
 		System.out.println("WeightedHeuristic timed out");
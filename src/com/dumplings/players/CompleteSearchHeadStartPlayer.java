@@ -1,6 +1,8 @@
 package com.dumplings.players;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import player.gamer.statemachine.StateMachineGamer;
 import player.gamer.statemachine.reflex.event.ReflexMoveSelectionEvent;
@@ -17,6 +19,9 @@ import com.dumplings.general.PlayerStrategy;
 import com.dumplings.heuristics.HybridMobility;
 import com.dumplings.strategies.IDSAlphaBeta;
 import com.dumplings.strategies.MiniMax;
+import com.dumplings.utils.EndGameBook;
+import com.dumplings.utils.HeapTranspositionTable;
+import com.dumplings.utils.TranspositionTable;
 
 /**
  * AlphaBetaPlayer plays by using alpha-beta-pruning
@@ -24,12 +29,16 @@ import com.dumplings.strategies.MiniMax;
 public final class CompleteSearchHeadStartPlayer extends StateMachineGamer
 {
 	PlayerStrategy strategy, metaStrategy;
+	TranspositionTable table;
+	EndGameBook book;
 	
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
 		
 		strategy = new IDSAlphaBeta(getStateMachine());		
+		table = new HeapTranspositionTable(TranspositionTable.DEFAULT_SIZE_MB);
+		strategy.setTranspositionTable(table);
 		metaStrategy = new MiniMax(getStateMachine());
 	
 		long start = System.currentTimeMillis();
@@ -37,7 +46,11 @@ public final class CompleteSearchHeadStartPlayer extends StateMachineGamer
 		long end = System.currentTimeMillis();		
 		//System.out.println("Complete search spent " + (start - end));
 		
-		strategy.setExternalCache(((MiniMax)metaStrategy).maxStateScores);
+		// Values proven in earlier matches of this game, and those of the complete search
+		book = new EndGameBook(((DumplingPropNetStateMachine) getStateMachine()).getGameKey(), getRole());
+		Map<Long, Integer> knownValues = new HashMap<Long, Integer>(book.load());
+		knownValues.putAll(((MiniMax)metaStrategy).maxStateScores);
+		strategy.setExternalCache(knownValues);
 		strategy.setHeuristic(new HybridMobility(getStateMachine()));
 		
 	}
@@ -67,7 +80,11 @@ public final class CompleteSearchHeadStartPlayer extends StateMachineGamer
 	
 	@Override
 	public void stateMachineStop() {
-		// Do nothing.
+		// Nothing to keep if the match stopped before the metagame loaded the book
+		if (book == null)
+			return;
+		book.save(table, ((MiniMax)metaStrategy).maxStateScores);
+		book = null;
 	}
 
 	/**
@@ -19,11 +19,14 @@ import com.dumplings.strategies.MiniMaxDeadStateRemoval;
 public final class DeadStateRemovalPlayer extends StateMachineGamer
 {
 	PlayerStrategy strategy;
+	/* Share of the start clock that finding latches may take */
+	static double latchShare = 0.3;
 	
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
-		((DumplingPropNetStateMachine) getStateMachine()).enableLatches();
+		long latchTime = (long) ((timeout - System.currentTimeMillis()) * latchShare);
+		((DumplingPropNetStateMachine) getStateMachine()).enableLatches(System.currentTimeMillis() + latchTime);
 		strategy = new MiniMaxDeadStateRemoval(getStateMachine());
 		strategy.enableCache(false);
 		
@@ -1,10 +1,12 @@
 package com.dumplings.players;
 
 import java.util.List;
+import java.util.Map;
 
 import player.gamer.statemachine.StateMachineGamer;
 import player.gamer.statemachine.reflex.event.ReflexMoveSelectionEvent;
 import player.gamer.statemachine.reflex.gui.ReflexDetailPanel;
+import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.StateMachine;
 import util.statemachine.exceptions.GoalDefinitionException;
@@ -16,6 +18,9 @@ import com.dumplings.general.DumplingPropNetStateMachine;
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.strategies.IDSAlphaBeta;
 import com.dumplings.strategies.MonteCarloAlphaBeta;
+import com.dumplings.utils.ConcurrentTranspositionTable;
+import com.dumplings.utils.EndGameBook;
+import com.dumplings.utils.TranspositionTable;
 
 /**
  * AlphaBetaPlayer plays by using alpha-beta-pruning
@@ -23,31 +28,70 @@ import com.dumplings.strategies.MonteCarloAlphaBeta;
 public final class EndGameBookPlayer extends StateMachineGamer
 {
 	PlayerStrategy strategy, metaStrategy;
+	TranspositionTable table;
+	EndGameBook book;
+	/* Share of the start clock that generating propnet code may take */
+	static double codeGenerationShare = 0.2;
+	/* Size in MB of the table the meta game search shares with the move search */
+	static int transpositionTableSize = 256;
 	
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
+		long codeGenerationTime = (long) ((timeout - System.currentTimeMillis()) * codeGenerationShare);
+		((DumplingPropNetStateMachine) getStateMachine()).generateEvaluator(codeGenerationTime);
+		
 		strategy = new IDSAlphaBeta(getStateMachine());
 		//metaStrategy = new MonteCarloMiniMax(getStateMachine(), 5);
-		metaStrategy = new MonteCarloAlphaBeta(getStateMachine(), 5);
+		// On its own copy of the state machine, as it keeps running next to the move search
+		metaStrategy = new MonteCarloAlphaBeta(((DumplingPropNetStateMachine) getStateMachine()).copy(), 5);
+		table = new ConcurrentTranspositionTable(transpositionTableSize);
+		strategy.setTranspositionTable(table);
+		metaStrategy.setTranspositionTable(table);
+		
+		// Values proven in earlier matches of this game
+		book = new EndGameBook(((DumplingPropNetStateMachine) getStateMachine()).getGameKey(), getRole());
+		Map<Long, Integer> bookValues = book.load();
+		strategy.setExternalCache(bookValues);
+		metaStrategy.setExternalCache(bookValues);
 		
 		metaStrategy.getBestMove(getCurrentState(), getRole(), timeout);
 		//strategy.setExternalCache(((MonteCarloMiniMax)metaStrategy).maxStateScores);
-		strategy.setExternalCache(((MonteCarloAlphaBeta)metaStrategy).maxStateScores);
 	}
 	
 	/**
 	 * Selects the best legal move
 	 */
 	@Override
-	public Move stateMachineSelectMove(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	public Move stateMachineSelectMove(final long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
 		System.out.println("Selecting move...");
 
 		long start = System.currentTimeMillis();
 		
+		// The meta game search goes on proving end games while the move
+		// search runs, both filling the same table
+		final MachineState state = getCurrentState();
+		Thread prover = new Thread() {
+			public void run() {
+				try {
+					metaStrategy.getBestMove(state, getRole(), timeout);
+				} catch (MoveDefinitionException e) {
+					e.printStackTrace();
+				} catch (GoalDefinitionException e) {
+					e.printStackTrace();
+				} catch (TransitionDefinitionException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		prover.start();
+		
 		List<Move> moves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
 		Move selection = strategy.getBestMove(getCurrentState(), getRole(), timeout);
+		try {
+			prover.join();
+		} catch (InterruptedException e) {}
 
 		long stop = System.currentTimeMillis();
 		
@@ -61,6 +105,11 @@ public final class EndGameBookPlayer extends StateMachineGamer
 	
 	@Override
 	public void stateMachineStop() {
+		// Nothing to keep if the match stopped before the metagame loaded the book
+		if (book == null)
+			return;
+		book.save(table, null);
+		book = null;
 		strategy.cleanup();
 		metaStrategy.cleanup();
 	}
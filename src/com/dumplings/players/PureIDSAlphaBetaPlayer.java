@@ -19,6 +19,7 @@ import apps.player.detail.DetailPanel;
 import com.dumplings.general.DumplingPropNetStateMachine;
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.strategies.IDSAlphaBeta;
+import com.dumplings.utils.OffHeapTranspositionTable;
 
 /**
  * AlphaBetaPlayer plays by using alpha-beta-pruning
@@ -26,12 +27,21 @@ import com.dumplings.strategies.IDSAlphaBeta;
 public final class PureIDSAlphaBetaPlayer extends StateMachineGamer
 {
 	PlayerStrategy strategy;
+	/* Size in MB of the off-heap transposition table of the search */
+	static int transpositionTableSize = 256;
+	/* Allocated once and cleared for every match, direct buffers are only freed by the GC */
+	private OffHeapTranspositionTable transpositionTable;
 	
 	@Override
 	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
 	{
 		DumplingPropNetStateMachine fsm = ((DumplingPropNetStateMachine)getStateMachine()).factorPropNet(getRole());
 		strategy = new IDSAlphaBeta(fsm == null ? getStateMachine() : fsm);
+		if (transpositionTable == null)
+			transpositionTable = new OffHeapTranspositionTable(transpositionTableSize);
+		else
+			transpositionTable.clear();
+		strategy.setTranspositionTable(transpositionTable);
 	}
 	
 	/**
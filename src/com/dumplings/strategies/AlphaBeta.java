@@ -1,14 +1,9 @@
 package com.dumplings.strategies;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeSet;
 
-import util.gdl.grammar.GdlSentence;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -19,10 +14,10 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.general.TimeoutHandler;
+import com.dumplings.utils.Canonicalizer;
+import com.dumplings.utils.TranspositionTable;
 
 public class AlphaBeta extends PlayerStrategy {
-	Map<String, Integer> maxStateScores;
-	Map<String, Map<String, Integer>> minStateScores;
 	
 	private AlphaBetaComputer abc;
 	private boolean useCaching = true;
@@ -37,8 +32,6 @@ public class AlphaBeta extends PlayerStrategy {
 	public AlphaBeta(StateMachine sm, int maxDepth) {
 		super(sm);
 		this.maxDepth = maxDepth;
-		maxStateScores = new HashMap<String, Integer>();
-		minStateScores = new HashMap<String, Map<String, Integer>>();
 	}
 	
 	public void enableCache(boolean flag) {
@@ -50,6 +43,7 @@ public class AlphaBeta extends PlayerStrategy {
 	}
 	
 	public Move getBestMove(MachineState state, Role role, long timeout) throws MoveDefinitionException {
+		getTranspositionTable().nextGeneration();
 		// Call the thread that does the computation
 		abc = new AlphaBetaComputer(state, role);
 		
@@ -134,21 +128,18 @@ public class AlphaBeta extends PlayerStrategy {
 		
 		private int minScore(Role role, Move move, MachineState state, int alpha, int beta, int depth) throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException {
 			/* Check if we already have this state in cache */
-			String stateString = canonicalizeStateString(state, alpha, beta);
-			String moveString = move.toString();
-			Map<String, Integer> stateMoveScores = minStateScores.get(stateString);
-			if (useCaching && stateMoveScores != null && stateMoveScores.get(moveString) != null)
-				return stateMoveScores.get(moveString);
+			long moveKey = Canonicalizer.stateKey(state) ^ Canonicalizer.moveKey(move);
+			long entry = transpositionTable.probe(moveKey);
+			if (useCaching && TranspositionTable.isCutoff(entry, TranspositionTable.PROVEN, alpha, beta))
+				return TranspositionTable.value(entry);
 			
 			/* Compute minScore */
-			List<List<Move>> allJointMoves = stateMachine.getLegalJointMoves(state, role, move);
-			int worstScore = Integer.MAX_VALUE;
+			int worstScore = Integer.MAX_VALUE, originalBeta = beta;
 			boolean heuristicUsed = false;
-			for (List<Move> jointMove : allJointMoves) {
+			for (MachineState newState : getNextStates(state, role, move)) {
 				if (stopExecution) {
 					break;
 				}
-				MachineState newState = stateMachine.getNextState(state, jointMove);
 				int newScore = maxScore(role, newState, alpha, beta, depth + 1);
 				int testScore = newScore;
 				if (newScore < 0) { // it's a heuristic
@@ -165,10 +156,8 @@ public class AlphaBeta extends PlayerStrategy {
 					}
 				}
 			}
-			if (!heuristicUsed) { // don't cache if we're not 100% sure this is the best value
-				if (stateMoveScores == null) minStateScores.put(stateString, (stateMoveScores = new HashMap<String, Integer>()));
-				stateMoveScores.put(moveString, worstScore);
-			}
+			if (!stopExecution && !heuristicUsed) // don't cache if we're not 100% sure this is the best value
+				transpositionTable.store(moveKey, worstScore, TranspositionTable.PROVEN, TranspositionTable.boundType(worstScore, alpha, originalBeta), TranspositionTable.NO_MOVE);
 			return heuristicUsed ? -worstScore : worstScore;
 		}
 		
@@ -179,12 +168,13 @@ public class AlphaBeta extends PlayerStrategy {
 				return stateMachine.getGoal(state, role);		
 			}
 			
-			String stateString = canonicalizeStateString(state, alpha, beta);
-			if (useCaching && maxStateScores.get(stateString) != null) 			
-				return maxStateScores.get(stateString);
+			long stateKey = Canonicalizer.stateKey(state);
+			long entry = transpositionTable.probe(stateKey);
+			if (useCaching && TranspositionTable.isCutoff(entry, TranspositionTable.PROVEN, alpha, beta))
+				return TranspositionTable.value(entry);
 			
 			numStatesExpanded++;
-			int bestValue = Integer.MIN_VALUE;
+			int bestValue = Integer.MIN_VALUE, bestIndex = TranspositionTable.NO_MOVE, originalAlpha = alpha;
 			boolean heuristicUsed = false;
 			if (heuristic != null && depth > maxDepth) {
 				Integer value = heuristic.getScore(state, role);
@@ -193,18 +183,26 @@ public class AlphaBeta extends PlayerStrategy {
 				}
 			} 
 			else {
-				for (Move move : stateMachine.getLegalMoves(state, role)) {
+				List<Move> moves = stateMachine.getLegalMoves(state, role);
+				// Search the best move of the last search of this state first
+				int first = TranspositionTable.bestMove(entry);
+				if (first >= moves.size())
+					first = 0;
+				for (int k = 0; k < moves.size(); k++) {
+					int i = (k == 0) ? first : (k <= first ? k - 1 : k);
 					if (stopExecution) {
 						break;
 					}
-					int value = minScore(role, move, state, alpha, beta, depth);
+					int value = minScore(role, moves.get(i), state, alpha, beta, depth);
 					int testValue = value;
 					if (value < 0) { // it's a heuristic
 						testValue = -testValue;
 						heuristicUsed = true;
 					}
-					if (testValue > bestValue)
+					if (testValue > bestValue) {
 						bestValue = testValue;
+						bestIndex = i;
+					}
 					alpha = Math.max(alpha, bestValue);
 					if (alpha >= beta) {
 						bestValue = alpha;
@@ -212,21 +210,10 @@ public class AlphaBeta extends PlayerStrategy {
 					}
 				}
 				if (!stopExecution && !heuristicUsed) // don't cache if we're not 100% sure this is the best value
-					maxStateScores.put(stateString, bestValue);
+					transpositionTable.storeState(stateKey, bestValue, TranspositionTable.PROVEN, TranspositionTable.boundType(bestValue, originalAlpha, beta), bestIndex);
 			}
 			return heuristicUsed ? -bestValue : bestValue;
 		}
-		
-		/*
-		 * This function makes sure we don't distinguish between same states
-		 */
-		private String canonicalizeStateString(MachineState state, int alpha, int beta) {
-			Set<String> sortedStateContents = new TreeSet<String>();
-			for (GdlSentence gdl : state.getContents()) {
-				sortedStateContents.add(gdl.toString());
-			}
-			return alpha + " " + beta + " " + sortedStateContents.toString();
-		}
 
 		@Override
 		public void onTimeout() {
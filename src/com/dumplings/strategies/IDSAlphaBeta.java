@@ -1,9 +1,7 @@
 package com.dumplings.strategies;
 
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -19,23 +17,12 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.general.TimeoutHandler;
 import com.dumplings.utils.Canonicalizer;
+import com.dumplings.utils.TranspositionTable;
 
 public class IDSAlphaBeta extends PlayerStrategy {
-	private Map<String, Integer> maxStateScores;
-	private Map<String, Map<String, Integer>> minStateScores;
 	private int initialDepth = 1;
 	private int hardMaxDepth = 128;
 	
-		
-	@Override
-	public void cleanup() {
-		if (maxStateScores != null)
-			maxStateScores.clear();
-		if (minStateScores != null)
-			minStateScores.clear();
-		super.cleanup();
-	}
-	
 	private AlphaBetaComputer abc = null;
 	private boolean useCaching = true;
 	private int numStatesExpanded;
@@ -43,11 +30,8 @@ public class IDSAlphaBeta extends PlayerStrategy {
 	private int minCacheHit = 0, maxCacheHit = 0, extCacheHit = 0;
 
 	private Timer timer;
-	public Map<String, Integer> getMaxStateScores() { return maxStateScores; }
 	public IDSAlphaBeta(StateMachine sm) {
 		super(sm);		
-		maxStateScores = new HashMap<String, Integer>();
-		minStateScores = new HashMap<String, Map<String, Integer>>();
 	}
 	
 	public void enableCache(boolean flag) {
@@ -71,6 +55,7 @@ public class IDSAlphaBeta extends PlayerStrategy {
 			}		
 		}, Math.max((timeout - System.currentTimeMillis() - 500), 0));
 
+		getTranspositionTable().nextGeneration();
 		maxDepth = initialDepth;
 		Integer currentBestValue = Integer.MIN_VALUE;
 		
@@ -131,7 +116,7 @@ public class IDSAlphaBeta extends PlayerStrategy {
 		System.out.println(role.toString() + ": Max Depth: " + maxDepth + "  Move: " + bestMove);		
 		System.out.println(role.toString() + ": Playing move with score (0 might mean unknown): " + currentBestValue);
 		System.out.println(role.toString() + ": Accumulative cache hit min/max/ext: " + minCacheHit + "/" + maxCacheHit + "/" + extCacheHit);
-		System.out.println(role.toString() + ": # of entries in min/max/ext cache: " + minStateScores.size() + "/" + maxStateScores.size() + "/" + ((externalCache == null)?0:externalCache.size()));
+		System.out.println(role.toString() + ": # of entries in table/ext cache: " + transpositionTable.size() + "/" + ((externalCache == null)?0:externalCache.size()));
 		long stop = System.currentTimeMillis();
 		System.out.println(role.toString() + ": time spent in getBestMove - " + (stop - start));
 		
@@ -218,25 +203,21 @@ public class IDSAlphaBeta extends PlayerStrategy {
 
 		private Integer minScore(Role role, Move move, MachineState state, int alpha, int beta, int depth) throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException {
 			/* Check if we already have this state in cache */
-			Integer cacheValue;
-			String moveString = move.toString();
-			String alphaBetaStateString = Canonicalizer.stateStringAlphaBeta(state, alpha, beta);
-			Map<String, Integer> stateMoveScores = minStateScores.get(alphaBetaStateString);
-			if (useCaching && stateMoveScores != null && (cacheValue = stateMoveScores.get(moveString)) != null) {
+			long moveKey = Canonicalizer.stateKey(state) ^ Canonicalizer.moveKey(move);
+			long entry = transpositionTable.probe(moveKey);
+			if (useCaching && TranspositionTable.isCutoff(entry, maxDepth - depth + 1, alpha, beta)) {
 				//System.out.println(role.toString() + ": INTERMEDIATE CACHE HIT");
 				minCacheHit++;
-				return cacheValue;
+				return TranspositionTable.isProven(entry) ? TranspositionTable.value(entry) : -TranspositionTable.value(entry);
 			}			
 
 			/* Compute minScore */
-			List<List<Move>> allJointMoves = stateMachine.getLegalJointMoves(state, role, move);
-			int worstScore = Integer.MAX_VALUE;
+			int worstScore = Integer.MAX_VALUE, originalBeta = beta;
 			boolean heuristicUsed = false, nullValueReturned = false;
-			for (List<Move> jointMove : allJointMoves) {
+			for (MachineState newState : getNextStates(state, role, move)) {
 				if (stopExecution) {
 					break;
 				}
-				MachineState newState = stateMachine.getNextState(state, jointMove);
 				Integer newScore = maxScore(role, newState, alpha, beta, depth + 1);
 				if (newScore != null) {
 					int testScore = newScore;
@@ -263,10 +244,8 @@ public class IDSAlphaBeta extends PlayerStrategy {
 			if (worstScore == Integer.MAX_VALUE)
 				return null;
 
-			if (!heuristicUsed) { // don't cache if we're not 100% sure this is the best value
-				if (stateMoveScores == null) minStateScores.put(alphaBetaStateString, (stateMoveScores = new HashMap<String, Integer>()));
-				stateMoveScores.put(moveString, worstScore);
-			}
+			if (!stopExecution && !nullValueReturned) // heuristic values only hold for searches up to this depth
+				transpositionTable.store(moveKey, worstScore, heuristicUsed ? maxDepth - depth + 1 : TranspositionTable.PROVEN, TranspositionTable.boundType(worstScore, alpha, originalBeta), TranspositionTable.NO_MOVE);
 
 			return heuristicUsed ? -worstScore : worstScore;
 		}
@@ -278,20 +257,20 @@ public class IDSAlphaBeta extends PlayerStrategy {
 				return stateMachine.getGoal(state, role);		
 			}
 
-			String stateString = Canonicalizer.stateString(state);
+			long stateKey = Canonicalizer.stateKey(state);
 			Integer cacheValue;
-			if (externalCache != null && (cacheValue = externalCache.get(stateString)) != null) {
+			if (externalCache != null && (cacheValue = externalCache.get(stateKey)) != null) {
 				extCacheHit ++;
 				return cacheValue;
 			}
-			String alphaBetaStateString = Canonicalizer.stateStringAlphaBeta(stateString, alpha, beta);
-			if (useCaching && (cacheValue = maxStateScores.get(alphaBetaStateString)) != null) {
+			long entry = transpositionTable.probe(stateKey);
+			if (useCaching && TranspositionTable.isCutoff(entry, maxDepth - depth + 1, alpha, beta)) {
 				maxCacheHit ++;
-				return cacheValue;
+				return TranspositionTable.isProven(entry) ? TranspositionTable.value(entry) : -TranspositionTable.value(entry);
 			}			
 
 			numStatesExpanded++;
-			int bestValue = Integer.MIN_VALUE;
+			int bestValue = Integer.MIN_VALUE, bestIndex = TranspositionTable.NO_MOVE, originalAlpha = alpha;
 			boolean heuristicUsed = false, nullValueReturned = false;
 			List<Move> moves = stateMachine.getLegalMoves(state, role);
 			if (depth > maxDepth) {
@@ -304,8 +283,11 @@ public class IDSAlphaBeta extends PlayerStrategy {
 				// Even if we have only one move here, it's still important to drop the probe to see how it goes.
 				if (heuristic != null/* && moves.size() > 1*/) {
 					Integer value = heuristic.getScore(state, role);
-					if (value != null)
+					if (value != null) {
+						if (!stopExecution)
+							transpositionTable.storeState(stateKey, value, 0, TranspositionTable.EXACT, TranspositionTable.NO_MOVE);
 						return -value; // return heuristic scores as negative to differentiate for caching purposes
+					}
 					return null;
 				} else {
 					//Originally I returned Integer.MIN_VALUE; but then I found out that although this move's result is unknown, it's still
@@ -315,19 +297,26 @@ public class IDSAlphaBeta extends PlayerStrategy {
 				}
 			} 
 			else {
-				for (Move move : moves) {
+				// Search the best move of the last search of this state first
+				int first = TranspositionTable.bestMove(entry);
+				if (first >= moves.size())
+					first = 0;
+				for (int k = 0; k < moves.size(); k++) {
+					int i = (k == 0) ? first : (k <= first ? k - 1 : k);
 					if (stopExecution) {
 						break;
 					}
-					Integer value = minScore(role, move, state, alpha, beta, depth);
+					Integer value = minScore(role, moves.get(i), state, alpha, beta, depth);
 					if (value != null) {
 						int testValue = value;
 						if (value < 0) { // it's a heuristic
 							testValue = -testValue;
 							heuristicUsed = true;
 						}
-						if (testValue > bestValue)
+						if (testValue > bestValue) {
 							bestValue = testValue;
+							bestIndex = i;
+						}
 						alpha = Math.max(alpha, bestValue);
 						if (alpha >= beta) {
 							bestValue = alpha;
@@ -345,8 +334,8 @@ public class IDSAlphaBeta extends PlayerStrategy {
 				if (bestValue == Integer.MIN_VALUE)
 					return null;
 
-				if (!stopExecution && !heuristicUsed) // don't cache if we're not 100% sure this is the best value
-					maxStateScores.put(alphaBetaStateString, bestValue);
+				if (!stopExecution && !nullValueReturned) // heuristic values only hold for searches up to this depth
+					transpositionTable.storeState(stateKey, bestValue, heuristicUsed ? maxDepth - depth + 1 : TranspositionTable.PROVEN, TranspositionTable.boundType(bestValue, originalAlpha, beta), bestIndex);
 
 				return heuristicUsed ? -bestValue : bestValue;
 			}
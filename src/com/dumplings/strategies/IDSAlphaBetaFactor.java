@@ -4,7 +4,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -22,9 +21,11 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.AbstractHeuristic;
 import com.dumplings.general.DumplingPropNetStateMachine;
+import com.dumplings.general.JointMoveIterator;
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.general.TimeoutHandler;
 import com.dumplings.utils.Canonicalizer;
+import com.dumplings.utils.TranspositionTable;
 
 public class IDSAlphaBetaFactor extends PlayerStrategy {
 	private class Result {
@@ -38,9 +39,6 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 		}
 	}
 	
-	private Map<String, Integer> maxStateScores;
-	private Map<String, Map<String, Integer>> minStateScores;
-		
 	private int initialDepth = 1;
 	private int hardMaxDepth = 128;
 	
@@ -54,24 +52,12 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 
 	private Timer timer;
 	
-	public Map<String, Integer> getMaxStateScores() { return maxStateScores; }
 	public void enableCache(boolean flag) { useCaching = flag; }
 	public void setInitialDepth(int d) { this.initialDepth = d; }
 	
 	public IDSAlphaBetaFactor(StateMachine original, Set<DumplingPropNetStateMachine> factors) {
 		super(original);
 		this.factors = factors;
-		maxStateScores = new HashMap<String, Integer>();
-		minStateScores = new HashMap<String, Map<String, Integer>>();
-	}
-	
-	@Override
-	public void cleanup() {
-		if (maxStateScores != null)
-			maxStateScores.clear();
-		if (minStateScores != null)
-			minStateScores.clear();
-		super.cleanup();
 	}
 	
 	public Move getBestMove(MachineState state, Role role, long timeout) throws MoveDefinitionException {
@@ -88,6 +74,7 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 			}		
 		}, Math.max((timeout - System.currentTimeMillis() - 500), 0));
 
+		getTranspositionTable().nextGeneration();
 		maxDepth = initialDepth;
 		
 		Result currentBestResult = new Result(null, Integer.MIN_VALUE);
@@ -174,7 +161,7 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 		System.out.println(role.toString() + ": Max Depth: " + maxDepth + "  Move: " + currentBestResult.move);		
 		System.out.println(role.toString() + ": Playing move with score (0 might mean unknown): " + currentBestResult.value);
 		System.out.println(role.toString() + ": Accumulative cache hit min/max/ext: " + minCacheHit + "/" + maxCacheHit + "/" + extCacheHit);
-		System.out.println(role.toString() + ": # of entries in min/max/ext cache: " + minStateScores.size() + "/" + maxStateScores.size() + "/" + ((externalCache == null)?0:externalCache.size()));
+		System.out.println(role.toString() + ": # of entries in table/ext cache: " + transpositionTable.size() + "/" + ((externalCache == null)?0:externalCache.size()));
 		long stop = System.currentTimeMillis();
 		System.out.println(role.toString() + ": time spent in getBestMove - " + (stop - start));
 		System.out.println("");
@@ -425,23 +412,20 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 
 		private Integer minScore(Role role, Move move, MachineState state, int alpha, int beta, int depth) throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException {
 			/* Check if we already have this state in cache */
-			Integer cacheValue;
-			String moveString = move.toString();
-			String alphaBetaStateString = Canonicalizer.stateStringAlphaBeta(state, alpha, beta);
-			Map<String, Integer> stateMoveScores = minStateScores.get(alphaBetaStateString);
-			if (useCaching && stateMoveScores != null && (cacheValue = stateMoveScores.get(moveString)) != null) {
+			long moveKey = Canonicalizer.stateKey(state) ^ Canonicalizer.moveKey(move);
+			long entry = transpositionTable.probe(moveKey);
+			if (useCaching && TranspositionTable.isCutoff(entry, maxDepth - depth + 1, alpha, beta)) {
 				//System.out.println(role.toString() + ": INTERMEDIATE CACHE HIT");
 				minCacheHit++;
-				return cacheValue;
+				return TranspositionTable.isProven(entry) ? TranspositionTable.value(entry) : -TranspositionTable.value(entry);
 			}			
 
 			/* Compute minScore */
-			List<List<Move>> allJointMoves = currentFactor.getLegalJointMoves(state, role, move);
-			if (allJointMoves.isEmpty()) {
+			JointMoveIterator allJointMoves = currentFactor.getLegalJointMoveIterator(state, role, move);
+			if (!allJointMoves.hasNext()) {
 				// build composite joint move with opponent moves from different factors
 				//System.out.println(role + ": no joint moves, so build composite with opponent moves from other factors");
 		        List<List<Move>> legals = new ArrayList<List<Move>>();
-		        List<Role> missingRolesInCurrent = new ArrayList<Role>();
 		        for (Role r : stateMachine.getRoles()) {
 		            if (r.equals(role)) {
 		                List<Move> m = new ArrayList<Move>();
@@ -450,52 +434,33 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 		            } else {
 		            	List<Move> legalPlayerMoves = currentFactor.getLegalMoves(state, r);
 		            	if (legalPlayerMoves.isEmpty()) {
-		            		missingRolesInCurrent.add(r);
-		            		legalPlayerMoves = null;
+		            		// fill in with a move from other factors (any move)
+							Move legalMove = null;
+							for (DumplingPropNetStateMachine otherFactor : factors) {
+								if (otherFactor != currentFactor) {
+									List<Move> otherPlayerMoves = otherFactor.getLegalMoves(state, r);
+									if (!otherPlayerMoves.isEmpty()) {
+										legalMove = otherPlayerMoves.get(0);
+										break;
+									}
+								}
+							}
+							if (legalMove == null)
+								System.out.println("...what??? no move in any factor for '" + r + "'? something's fishy!");
+							legalPlayerMoves = Collections.singletonList(legalMove);
 		            	}
 		                legals.add(legalPlayerMoves);
 		            }
 		        }
-		        allJointMoves = new ArrayList<List<Move>>();
-		        // get joint moves, where some entries might be null
-		        crossProductLegalMovesWithHoles(legals, allJointMoves, new LinkedList<Move>());
-		        
-		        // fill in empty joint move entries w/ moves from other factors (any moves)
-				Map<Role, Integer> roleIndices = stateMachine.getRoleIndices();
-		        for (Role playerRole : missingRolesInCurrent) {
-		        	if (!playerRole.equals(role)) {
-						Move legalMove = null;
-						for (DumplingPropNetStateMachine otherFactor : factors) {
-							if (otherFactor != currentFactor) {
-								List<Move> legalPlayerMoves = otherFactor.getLegalMoves(state, playerRole);
-								if (!legalPlayerMoves.isEmpty()) {
-									legalMove = legalPlayerMoves.get(0);
-									break;
-								}
-							}
-						}
-						if (legalMove == null) {
-							System.out.println("...what??? no move in any factor for '" + playerRole + "'? something's fishy!");
-							break;
-						}
-			        	for (List<Move> jointMove : allJointMoves) {
-							int roleIndex = roleIndices.get(playerRole);
-							if (jointMove.get(roleIndex) != null)
-								System.out.println("...wait, expected " + playerRole + "'s move at index " + roleIndex + " in " + jointMove + " to be null... something's fishy!");
-							else
-								jointMove.set(roleIndex, legalMove);
-			        	}
-		        	}
-		        }
+		        allJointMoves = new JointMoveIterator(legals);
 			}
 			
-			int worstScore = Integer.MAX_VALUE;
+			int worstScore = Integer.MAX_VALUE, originalBeta = beta;
 			boolean heuristicUsed = false, nullValueReturned = false;
-			for (List<Move> jointMove : allJointMoves) {
+			for (MachineState newState : getNextStates(state, allJointMoves)) {
 				if (stopExecution) {
 					break;
 				}
-				MachineState newState = stateMachine.getNextState(state, jointMove);
 				Integer newScore = maxScore(role, newState, alpha, beta, depth + 1);
 				if (newScore != null) {
 					int testScore = newScore;
@@ -526,10 +491,8 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 				return null;
 			}
 
-			if (!heuristicUsed) { // don't cache if we're not 100% sure this is the best value
-				if (stateMoveScores == null) minStateScores.put(alphaBetaStateString, (stateMoveScores = new HashMap<String, Integer>()));
-				stateMoveScores.put(moveString, worstScore);
-			}
+			if (!stopExecution && !nullValueReturned) // heuristic values only hold for searches up to this depth
+				transpositionTable.store(moveKey, worstScore, heuristicUsed ? maxDepth - depth + 1 : TranspositionTable.PROVEN, TranspositionTable.boundType(worstScore, alpha, originalBeta), TranspositionTable.NO_MOVE);
 			
 			return heuristicUsed ? -worstScore : worstScore;
 		}
@@ -541,20 +504,20 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 				return stateMachine.getGoal(state, role);		
 			}
 
-			String stateString = Canonicalizer.stateString(state);
+			long stateKey = Canonicalizer.stateKey(state);
 			Integer cacheValue;
-			if (externalCache != null && (cacheValue = externalCache.get(stateString)) != null) {
+			if (externalCache != null && (cacheValue = externalCache.get(stateKey)) != null) {
 				extCacheHit ++;
 				return cacheValue;
 			}
-			String alphaBetaStateString = Canonicalizer.stateStringAlphaBeta(stateString, alpha, beta);
-			if (useCaching && (cacheValue = maxStateScores.get(alphaBetaStateString)) != null) {
+			long entry = transpositionTable.probe(stateKey);
+			if (useCaching && TranspositionTable.isCutoff(entry, maxDepth - depth + 1, alpha, beta)) {
 				maxCacheHit ++;
-				return cacheValue;
+				return TranspositionTable.isProven(entry) ? TranspositionTable.value(entry) : -TranspositionTable.value(entry);
 			}			
 
 			numStatesExpanded++;
-			int bestValue = Integer.MIN_VALUE;
+			int bestValue = Integer.MIN_VALUE, bestIndex = TranspositionTable.NO_MOVE, originalAlpha = alpha;
 			boolean heuristicUsed = false, nullValueReturned = false;
 			List<Move> moves = currentFactor.getLegalMoves(state, role);
 			if (moves.isEmpty()) {
@@ -578,8 +541,11 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 				if (heuristic != null /*&& moves.size() > 1*/) {
 					Integer value = heuristic.getScore(state, role);
 					
-					if (value != null)
+					if (value != null) {
+						if (!stopExecution)
+							transpositionTable.storeState(stateKey, value, 0, TranspositionTable.EXACT, TranspositionTable.NO_MOVE);
 						return -value; // return heuristic scores as negative to differentiate for caching purposes
+					}
 					return null;
 				} else {
 					//Originally I returned Integer.MIN_VALUE; but then I found out that although this move's result is unknown, it's still
@@ -589,19 +555,26 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 				}
 			} 
 			else {
-				for (Move move : moves) {
+				// Search the best move of the last search of this state first
+				int first = TranspositionTable.bestMove(entry);
+				if (first >= moves.size())
+					first = 0;
+				for (int k = 0; k < moves.size(); k++) {
+					int i = (k == 0) ? first : (k <= first ? k - 1 : k);
 					if (stopExecution) {
 						break;
 					}
-					Integer value = minScore(role, move, state, alpha, beta, depth);
+					Integer value = minScore(role, moves.get(i), state, alpha, beta, depth);
 					if (value != null) {
 						int testValue = value;
 						if (value < 0) { // it's a heuristic
 							testValue = -testValue;
 							heuristicUsed = true;
 						}
-						if (testValue > bestValue)
+						if (testValue > bestValue) {
 							bestValue = testValue;
+							bestIndex = i;
+						}
 						alpha = Math.max(alpha, bestValue);
 						if (alpha >= beta) {
 							bestValue = alpha;
@@ -623,32 +596,13 @@ public class IDSAlphaBetaFactor extends PlayerStrategy {
 					return null;
 				}
 
-				if (!stopExecution && !heuristicUsed) // don't cache if we're not 100% sure this is the best value
-					maxStateScores.put(alphaBetaStateString, bestValue);
+				if (!stopExecution && !nullValueReturned) // heuristic values only hold for searches up to this depth
+					transpositionTable.storeState(stateKey, bestValue, heuristicUsed ? maxDepth - depth + 1 : TranspositionTable.PROVEN, TranspositionTable.boundType(bestValue, originalAlpha, beta), bestIndex);
 								
 				return heuristicUsed ? -bestValue : bestValue;
 			}
 		}
 		
-	    protected void crossProductLegalMovesWithHoles(List<List<Move>> legals, List<List<Move>> crossProduct, LinkedList<Move> partial)
-	    {
-	        if (partial.size() == legals.size()) {
-	            crossProduct.add(new ArrayList<Move>(partial));
-	        } else {
-	        	if (legals.get(partial.size()) == null) {
-	        		partial.add(null);
-	                crossProductLegalMovesWithHoles(legals, crossProduct, partial);
-	        	} else {
-		            for (Move move : legals.get(partial.size())) {
-		                partial.addLast(move);
-		                crossProductLegalMovesWithHoles(legals, crossProduct, partial);
-		                partial.removeLast();
-		            }
-	        	}
-	        }
-	    }
-	        
-
 		@Override
 		public void onTimeout() {
 			/*
@@ -1,14 +1,9 @@
 package com.dumplings.strategies;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeSet;
 
-import util.gdl.grammar.GdlSentence;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -19,21 +14,10 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.general.TimeoutHandler;
+import com.dumplings.utils.Canonicalizer;
+import com.dumplings.utils.TranspositionTable;
 
 public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
-	private Map<String, Integer> maxStateScores;
-	private Map<String, Map<String, Integer>> minStateScores;	
-	public Map<String, Integer> getMaxStateScores() { return maxStateScores; }
-		
-	@Override
-	public void cleanup() {
-		if (maxStateScores != null)
-			maxStateScores.clear();
-		if (minStateScores != null)
-			minStateScores.clear();
-		super.cleanup();
-	}
-	
 	private AlphaBetaComputer abc = null;
 	private boolean useCaching = true;
 	private int numStatesExpanded;
@@ -52,8 +36,6 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 	}
 	public IDSAlphaBetaSimpleCache(StateMachine sm) {
 		super(sm);		
-		maxStateScores = new HashMap<String, Integer>();
-		minStateScores = new HashMap<String, Map<String, Integer>>();
 	}
 
 	public void enableCache(boolean flag) {
@@ -76,6 +58,7 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 			}		
 		}, Math.max((timeout - System.currentTimeMillis() - 500), 0));
 
+		getTranspositionTable().nextGeneration();
 		maxDepth = initialDepth;
 		Integer currentBestValue = Integer.MIN_VALUE;
 		List<Move> moves = stateMachine.getLegalMoves(state, role);
@@ -130,7 +113,7 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 		if (isChoosingUnknown)
 			System.out.println(role.toString() + ": chose unknown");
 		System.out.println(role.toString() + ": Accumulative cache hit min/max/ext: " + minCacheHit + "/" + maxCacheHit + "/" + extCacheHit);
-		System.out.println(role.toString() + ": # of entries in min/max cache: " + minStateScores.size() + "/" + maxStateScores.size());
+		System.out.println(role.toString() + ": # of entries in table: " + transpositionTable.size());
 		long stop = System.currentTimeMillis();
 		System.out.println(role.toString() + ": time spent in getBestMove - " + (stop - start));
 		return bestMove;
@@ -211,27 +194,15 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 		}
 
 		private Integer minScore(Role role, Move move, MachineState state, int alpha, int beta, int depth) throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException {
-			/* Check if we already have this state in cache */
-			Integer cacheValue;
-			String moveString = move.toString();
-			String stateString = canonicalizeStateString(state);
-			Map<String, Integer> stateMoveScores = minStateScores.get(stateString);
-			/*Shouldn't use cache here*/
-			//if (useCaching && stateMoveScores != null && (cacheValue = stateMoveScores.get(moveString)) != null) {
-				//System.out.println(role.toString() + ": INTERMEDIATE CACHE HIT");
-				//minCacheHit ++;
-				//return cacheValue;
-			//}			
+			/* Only max nodes are cached */
 			boolean isSubtreePruned = false;
 			/* Compute minScore */
-			List<List<Move>> allJointMoves = stateMachine.getLegalJointMoves(state, role, move);
 			int worstScore = Integer.MAX_VALUE;
 			boolean heuristicUsed = false, nullValueReturned = false;
-			for (List<Move> jointMove : allJointMoves) {
+			for (MachineState newState : getNextStates(state, role, move)) {
 				if (stopExecution) {
 					break;
 				}
-				MachineState newState = stateMachine.getNextState(state, jointMove);
 				Integer newScore = maxScore(role, newState, alpha, beta, depth + 1);
 				if (newScore != null) {
 					int testScore = newScore;
@@ -261,11 +232,6 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 			if (worstScore == Integer.MAX_VALUE)
 				return null;
 
-			/*if (!stopExecution && !heuristicUsed && !isSubtreePruned) { // don't cache if we're not 100% sure this is the best value
-				if (stateMoveScores == null) minStateScores.put(stateString, (stateMoveScores = new HashMap<String, Integer>()));
-				stateMoveScores.put(moveString, worstScore);
-			}*/
-
 			return heuristicUsed ? -worstScore : worstScore;
 		}
 
@@ -275,22 +241,22 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 				numStatesExpanded++;
 				return stateMachine.getGoal(state, role);		
 			}
-			boolean isSubtreePruned = false;
-			String stateString = canonicalizeStateString(state);
+			long stateKey = Canonicalizer.stateKey(state);
 			Integer cacheValue;
-			if (externalCache != null && (cacheValue = externalCache.get(stateString)) != null) {
+			if (externalCache != null && (cacheValue = externalCache.get(stateKey)) != null) {
 				//System.out.println(role.toString() + ": EXTERNAL CACHE HIT");
 				extCacheHit ++;
 				return cacheValue;
 			}			
-			if (useCaching && (cacheValue = maxStateScores.get(stateString)) != null) {
+			long entry = transpositionTable.probe(stateKey);
+			if (useCaching && TranspositionTable.isCutoff(entry, maxDepth - depth + 1, alpha, beta)) {
 				//System.out.println(role.toString() + ": INTERNAL CACHE HIT");
 				maxCacheHit ++;
-				return cacheValue;
+				return TranspositionTable.isProven(entry) ? TranspositionTable.value(entry) : -TranspositionTable.value(entry);
 			}			
-			log(role.toString() + ": cache miss - " + stateString);
+			log(role.toString() + ": cache miss - " + state);
 			numStatesExpanded++;
-			int bestValue = Integer.MIN_VALUE;
+			int bestValue = Integer.MIN_VALUE, bestIndex = TranspositionTable.NO_MOVE, originalAlpha = alpha;
 			boolean heuristicUsed = false, nullValueReturned = false;
 			if (depth > maxDepth) {
 				// only apply heuristics when we've alpha-beta-ed as deep as we're going to go
@@ -301,8 +267,11 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 				heuristicUsed = true;
 				if (heuristic != null) {
 					Integer value = heuristic.getScore(state, role);
-					if (value != null)
+					if (value != null) {
+						if (!stopExecution)
+							transpositionTable.storeState(stateKey, value, 0, TranspositionTable.EXACT, TranspositionTable.NO_MOVE);
 						return -value; // return heuristic scores as negative to differentiate for caching purposes
+					}
 					return null;
 				} else {
 					//Originally I returned Integer.MIN_VALUE; but then I found out that although this move's result is unknown, it's still
@@ -312,24 +281,31 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 				}
 			} 
 			else {
-				for (Move move : stateMachine.getLegalMoves(state, role)) {
+				List<Move> moves = stateMachine.getLegalMoves(state, role);
+				// Search the best move of the last search of this state first
+				int first = TranspositionTable.bestMove(entry);
+				if (first >= moves.size())
+					first = 0;
+				for (int k = 0; k < moves.size(); k++) {
+					int i = (k == 0) ? first : (k <= first ? k - 1 : k);
 					if (stopExecution) {
 						break;
 					}
-					Integer value = minScore(role, move, state, alpha, beta, depth);
+					Integer value = minScore(role, moves.get(i), state, alpha, beta, depth);
 					if (value != null) {
 						int testValue = value;
 						if (value < 0) { // it's a heuristic
 							testValue = -testValue;
 							heuristicUsed = true;
 						}
-						if (testValue > bestValue)
-							bestValue = testValue;						
+						if (testValue > bestValue) {
+							bestValue = testValue;
+							bestIndex = i;
+						}
 						alpha = Math.max(alpha, bestValue);
 						
 						if (alpha >= beta) {
 							bestValue = alpha;
-							isSubtreePruned = true;
 							break;
 						}
 					} else {
@@ -344,24 +320,13 @@ public class IDSAlphaBetaSimpleCache extends PlayerStrategy {
 				if (bestValue == Integer.MIN_VALUE)
 					return null;
 
-				if (!stopExecution && !heuristicUsed && !isSubtreePruned) // don't cache if we're not 100% sure this is the best value
-					maxStateScores.put(stateString, bestValue);
+				if (!stopExecution && !nullValueReturned) // heuristic values only hold for searches up to this depth
+					transpositionTable.storeState(stateKey, bestValue, heuristicUsed ? maxDepth - depth + 1 : TranspositionTable.PROVEN, TranspositionTable.boundType(bestValue, originalAlpha, beta), bestIndex);
 				
 				return heuristicUsed ? -bestValue : bestValue;
 			}
 		}
 
-		/*
-		 * This function makes sure we don't distinguish between same states
-		 */
-		private String canonicalizeStateString(MachineState state) {
-			Set<String> sortedStateContents = new TreeSet<String>();
-			for (GdlSentence gdl : state.getContents())
-				sortedStateContents.add(gdl.toString());
-			return sortedStateContents.toString();
-		}
-
-
 		@Override
 		public void onTimeout() {
 			/*
@@ -3,12 +3,9 @@ package com.dumplings.strategies;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeSet;
 
-import util.gdl.grammar.GdlSentence;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -19,10 +16,11 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.general.TimeoutHandler;
+import com.dumplings.utils.Canonicalizer;
 
 public class MiniMax extends PlayerStrategy {
-	public Map<String, Integer> maxStateScores;
-	Map<String, Map<String, Integer>> minStateScores;
+	public Map<Long, Integer> maxStateScores;
+	Map<Long, Map<Move, Integer>> minStateScores;
 	private MiniMaxComputer mm;
 	private boolean useCaching = true;
 	private int numStatesExpanded;
@@ -30,8 +28,8 @@ public class MiniMax extends PlayerStrategy {
 
 	public MiniMax(StateMachine sm) {
 		super(sm);
-		maxStateScores = new HashMap<String, Integer>();
-		minStateScores = new HashMap<String, Map<String, Integer>>();
+		maxStateScores = new HashMap<Long, Integer>();
+		minStateScores = new HashMap<Long, Map<Move, Integer>>();
 	}
 
 	public int getNumStatesExpanded() {
@@ -128,30 +126,29 @@ public class MiniMax extends PlayerStrategy {
 		}
 
 		private int minScore(Role role, Move move, MachineState state) throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException {
-			String stateString = canonicalizeStateString(state);
-			String moveString = move.toString();
-			Map<String, Integer> stateMoveScores = minStateScores.get(stateString);
+			long stateKey = Canonicalizer.stateKey(state);
+			Map<Move, Integer> stateMoveScores = minStateScores.get(stateKey);
 
-			if (useCaching && stateMoveScores != null && stateMoveScores.get(moveString) != null)
-				return stateMoveScores.get(moveString);
+			if (useCaching && stateMoveScores != null && stateMoveScores.get(move) != null)
+				return stateMoveScores.get(move);
 
-			List<List<Move>> allJointMoves = stateMachine.getLegalJointMoves(state, role, move);
 			int worstScore = Integer.MAX_VALUE;
-			for (List<Move> jointMove : allJointMoves) {
+			for (MachineState newState : getNextStates(state, role, move)) {
 				if (stopExecution) {
 					break;
 				}
-				MachineState newState = stateMachine.getNextState(state, jointMove);
 				int newScore = maxScore(role, newState);
 				if (newScore < worstScore)
 					worstScore = newScore;
 			}
 
+			if (stopExecution) // the value of a search cut short is not the real one
+				return worstScore;
 			if (stateMoveScores == null) {
-				minStateScores.put(stateString, (stateMoveScores = new HashMap<String, Integer>()));
+				minStateScores.put(stateKey, (stateMoveScores = new HashMap<Move, Integer>()));
 			}
 
-			stateMoveScores.put(moveString, worstScore);
+			stateMoveScores.put(move, worstScore);
 			return worstScore;
 		}
 
@@ -161,10 +158,10 @@ public class MiniMax extends PlayerStrategy {
 				return stateMachine.getGoal(state, role);
 			}
 
-			String stateString = canonicalizeStateString(state);
+			long stateKey = Canonicalizer.stateKey(state);
 
-			if (useCaching && maxStateScores.get(stateString) != null) 			
-				return maxStateScores.get(stateString);
+			if (useCaching && maxStateScores.get(stateKey) != null) 			
+				return maxStateScores.get(stateKey);
 
 			numStatesExpanded++;
 			int bestValue = Integer.MIN_VALUE;
@@ -176,15 +173,9 @@ public class MiniMax extends PlayerStrategy {
 				if (value > bestValue)
 					bestValue = value;
 			}
-			maxStateScores.put(stateString, bestValue);
+			if (!stopExecution)
+				maxStateScores.put(stateKey, bestValue);
 			return bestValue;
 		}
-
-		private String canonicalizeStateString(MachineState state) {
-			Set<String> sortedStateContents = new TreeSet<String>();
-			for (GdlSentence gdl : state.getContents())
-				sortedStateContents.add(gdl.toString());
-			return sortedStateContents.toString();
-		}
 	}
 }
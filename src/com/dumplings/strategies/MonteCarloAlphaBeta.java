@@ -1,9 +1,7 @@
 package com.dumplings.strategies;
 
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -19,20 +17,9 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.general.TimeoutHandler;
 import com.dumplings.utils.Canonicalizer;
+import com.dumplings.utils.TranspositionTable;
 
 public class MonteCarloAlphaBeta extends PlayerStrategy {
-	public Map<String, Integer> maxStateScores;
-	private Map<String, Map<String, Integer>> minStateScores;
-		
-	@Override
-	public void cleanup() {
-		if (maxStateScores != null)
-			maxStateScores.clear();
-		if (minStateScores != null)
-			minStateScores.clear();
-		super.cleanup();
-	}
-	
 	private int numStatesExpanded;
 	private int historyLength;
 	
@@ -42,12 +29,11 @@ public class MonteCarloAlphaBeta extends PlayerStrategy {
 	
 	public MonteCarloAlphaBeta(StateMachine sm, Integer hl) {
 		super(sm);
-		maxStateScores = new HashMap<String, Integer>();
-		minStateScores = new HashMap<String, Map<String, Integer>>();
 		historyLength = hl;
 	}
 	
 	public Move getBestMove(MachineState state, Role role, long timeout) throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException {
+		getTranspositionTable().nextGeneration();
 		mcmmc = new MonteCarloMiniMaxComputer(state, role);
 		mcmmc.start();
 		
@@ -132,40 +118,32 @@ public class MonteCarloAlphaBeta extends PlayerStrategy {
 				}
 				historyLength++;
 			}
-			System.out.println("Cache has " + maxStateScores.size() + " entries");
+			System.out.println("Cache has " + transpositionTable.size() + " entries");
 			return null;
 		}
 		
 		private int minScore(Role role, Move move, MachineState state, int alpha, int beta) throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException {
-			String stateString = Canonicalizer.stateString(state);
-			String moveString = move.toString();
-			Map<String, Integer> stateMoveScores = minStateScores.get(stateString);
+			long moveKey = Canonicalizer.stateKey(state) ^ Canonicalizer.moveKey(move);
+			long entry = transpositionTable.probe(moveKey);
+			if (TranspositionTable.isCutoff(entry, TranspositionTable.PROVEN, alpha, beta))
+				return TranspositionTable.value(entry);
 			
-			if (stateMoveScores != null && stateMoveScores.get(moveString) != null)
-				return stateMoveScores.get(moveString);
-			
-			List<List<Move>> allJointMoves = stateMachine.getLegalJointMoves(state, role, move);
-			int worstScore = Integer.MAX_VALUE;
-			boolean pruned = false;
-			for (List<Move> jointMove : allJointMoves) {
+			int worstScore = Integer.MAX_VALUE, originalBeta = beta;
+			for (MachineState newState : getNextStates(state, role, move)) {
 				if (stopExecution)
 					break;
-				MachineState newState = stateMachine.getNextState(state, jointMove);
 				int newScore = maxScore(role, newState, alpha, beta);
 				if (newScore < worstScore)
 					worstScore = newScore;
 				beta = Math.min(beta, worstScore);
 				if (beta <= alpha) {
 					worstScore = beta;
-					pruned = true;
 					break;
 				}
 			}
 			
-			if (stateMoveScores == null && !pruned) {
-				minStateScores.put(stateString, (stateMoveScores = new HashMap<String, Integer>()));
-				stateMoveScores.put(moveString, worstScore);
-			}
+			if (!stopExecution)
+				transpositionTable.store(moveKey, worstScore, TranspositionTable.PROVEN, TranspositionTable.boundType(worstScore, alpha, originalBeta), TranspositionTable.NO_MOVE);
 			return worstScore;
 		}
 		
@@ -175,29 +153,38 @@ public class MonteCarloAlphaBeta extends PlayerStrategy {
 				return stateMachine.getGoal(state, role);
 			}
 			
-			String stateString = Canonicalizer.stateString(state);
-			
-			if (maxStateScores.get(stateString) != null) 			
-				return maxStateScores.get(stateString);
+			long stateKey = Canonicalizer.stateKey(state);
+			Integer cacheValue;
+			if (externalCache != null && (cacheValue = externalCache.get(stateKey)) != null)
+				return cacheValue;
+			long entry = transpositionTable.probe(stateKey);
+			if (TranspositionTable.isCutoff(entry, TranspositionTable.PROVEN, alpha, beta))
+				return TranspositionTable.value(entry);
 			
 			numStatesExpanded++;
-			int bestValue = Integer.MIN_VALUE;
-			boolean pruned = false;
-			for (Move move : stateMachine.getLegalMoves(state, role)) {
+			int bestValue = Integer.MIN_VALUE, bestIndex = TranspositionTable.NO_MOVE, originalAlpha = alpha;
+			List<Move> moves = stateMachine.getLegalMoves(state, role);
+			// Search the best move of the last search of this state first
+			int first = TranspositionTable.bestMove(entry);
+			if (first >= moves.size())
+				first = 0;
+			for (int k = 0; k < moves.size(); k++) {
+				int i = (k == 0) ? first : (k <= first ? k - 1 : k);
 				if (stopExecution)
 					break;
-				int value = minScore(role, move, state, alpha, beta);
-				if (value > bestValue)
+				int value = minScore(role, moves.get(i), state, alpha, beta);
+				if (value > bestValue) {
 					bestValue = value;
+					bestIndex = i;
+				}
 				alpha = Math.max(alpha, bestValue);
 				if (alpha >= beta) {
 					bestValue = alpha;
-					pruned = true;
 					break;
 				}
 			}
-			if (!pruned)
-				maxStateScores.put(stateString, bestValue);
+			if (!stopExecution)
+				transpositionTable.storeState(stateKey, bestValue, TranspositionTable.PROVEN, TranspositionTable.boundType(bestValue, originalAlpha, beta), bestIndex);
 			return bestValue;
 		}
 
@@ -5,12 +5,9 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeSet;
 
-import util.gdl.grammar.GdlSentence;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 import util.statemachine.Role;
@@ -21,10 +18,11 @@ import util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.dumplings.general.PlayerStrategy;
 import com.dumplings.general.TimeoutHandler;
+import com.dumplings.utils.Canonicalizer;
 
 public class MonteCarloMiniMax extends PlayerStrategy {
-	public Map<String, Integer> maxStateScores;
-	private Map<String, Map<String, Integer>> minStateScores;
+	public Map<Long, Integer> maxStateScores;
+	private Map<Long, Map<Move, Integer>> minStateScores;
 	
 	
 	@Override
@@ -45,8 +43,8 @@ public class MonteCarloMiniMax extends PlayerStrategy {
 	
 	public MonteCarloMiniMax(StateMachine sm, Integer hl) {
 		super(sm);
-		maxStateScores = new HashMap<String, Integer>();
-		minStateScores = new HashMap<String, Map<String, Integer>>();
+		maxStateScores = new HashMap<Long, Integer>();
+		minStateScores = new HashMap<Long, Map<Move, Integer>>();
 		historyLength = hl;
 	}
 	
@@ -140,29 +138,26 @@ public class MonteCarloMiniMax extends PlayerStrategy {
 		}
 		
 		private int minScore(Role role, Move move, MachineState state) throws MoveDefinitionException, GoalDefinitionException, TransitionDefinitionException {
-			String stateString = canonicalizeStateString(state);
-			String moveString = move.toString();
-			Map<String, Integer> stateMoveScores = minStateScores.get(stateString);
+			long stateKey = Canonicalizer.stateKey(state);
+			Map<Move, Integer> stateMoveScores = minStateScores.get(stateKey);
 			
-			if (stateMoveScores != null && stateMoveScores.get(moveString) != null)
-				return stateMoveScores.get(moveString);
+			if (stateMoveScores != null && stateMoveScores.get(move) != null)
+				return stateMoveScores.get(move);
 			
-			List<List<Move>> allJointMoves = stateMachine.getLegalJointMoves(state, role, move);
 			int worstScore = Integer.MAX_VALUE;
-			for (List<Move> jointMove : allJointMoves) {
+			for (MachineState newState : getNextStates(state, role, move)) {
 				if (stopExecution)
 					break;
-				MachineState newState = stateMachine.getNextState(state, jointMove);
 				int newScore = maxScore(role, newState);
 				if (newScore < worstScore)
 					worstScore = newScore;
 			}
 			
 			if (stateMoveScores == null) {
-				minStateScores.put(stateString, (stateMoveScores = new HashMap<String, Integer>()));
+				minStateScores.put(stateKey, (stateMoveScores = new HashMap<Move, Integer>()));
 			}
 			
-			stateMoveScores.put(moveString, worstScore);
+			stateMoveScores.put(move, worstScore);
 			return worstScore;
 		}
 		
@@ -172,10 +167,10 @@ public class MonteCarloMiniMax extends PlayerStrategy {
 				return stateMachine.getGoal(state, role);
 			}
 			
-			String stateString = canonicalizeStateString(state);
+			long stateKey = Canonicalizer.stateKey(state);
 			
-			if (maxStateScores.get(stateString) != null) 			
-				return maxStateScores.get(stateString);
+			if (maxStateScores.get(stateKey) != null) 			
+				return maxStateScores.get(stateKey);
 			
 			numStatesExpanded++;
 			int bestValue = Integer.MIN_VALUE;
@@ -186,16 +181,9 @@ public class MonteCarloMiniMax extends PlayerStrategy {
 				if (value > bestValue)
 					bestValue = value;
 			}
-			maxStateScores.put(stateString, bestValue);
+			maxStateScores.put(stateKey, bestValue);
 			return bestValue;
 		}
-		
-		private String canonicalizeStateString(MachineState state) {
-			Set<String> sortedStateContents = new TreeSet<String>();
-			for (GdlSentence gdl : state.getContents())
-				sortedStateContents.add(gdl.toString());
-			return sortedStateContents.toString();
-		}
 
 		@Override
 		public void onTimeout() {
@@ -4,10 +4,20 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
+import util.gdl.grammar.Gdl;
 import util.gdl.grammar.GdlSentence;
 import util.statemachine.MachineState;
 import util.statemachine.Move;
 
+import com.dumplings.general.BitSetMachineState;
+
+/**
+ * Keys for the caches of the strategies. The string versions are exact but
+ * slow, and are kept for debugging; the long versions are Zobrist keys: every
+ * sentence gets a fixed pseudo-random 64 bit key and a state is the XOR of the
+ * keys of its sentences, so two different states collide with probability
+ * 2^-64 per pair.
+ */
 public class Canonicalizer {
 	public static String stateString(MachineState state) {
 		Set<String> sortedStateContents = new TreeSet<String>();
@@ -31,4 +41,77 @@ public class Canonicalizer {
 		}
 		return stateString(state) + moveStrings.toString();
 	}
+	
+	/**
+	 * The Zobrist key of a sentence, which only depends on its text, so it is
+	 * the same in every state machine and every run.
+	 */
+	public static long sentenceKey(GdlSentence sentence) {
+		return stringKey(sentence.toString());
+	}
+	
+	public static long stateKey(MachineState state) {
+		if (state instanceof BitSetMachineState)
+			return ((BitSetMachineState) state).getKey();
+		long key = 0;
+		for (GdlSentence gdl : state.getContents())
+			key ^= sentenceKey(gdl);
+		return key;
+	}
+	
+	public static long stateKeyAlphaBeta(MachineState state, int alpha, int beta) {
+		return stateKeyAlphaBeta(stateKey(state), alpha, beta);
+	}
+	
+	public static long stateKeyAlphaBeta(long stateKey, int alpha, int beta) {
+		return stateKey ^ mix(((long) alpha << 32) | (beta & 0xFFFFFFFFL));
+	}
+	
+	public static long moveKey(Move move) {
+		return stringKey(move.toString());
+	}
+	
+	/**
+	 * Like stateMovesString(), the order of the moves does not matter.
+	 */
+	public static long stateMovesKey(MachineState state, List<Move> moves) {
+		long key = 0;
+		for (Move move : moves)
+			key += moveKey(move);
+		return stateKey(state) ^ mix(key);
+	}
+	
+	/**
+	 * A key of a game description, which only depends on its text, so that
+	 * what is learned about a game can be found again in the next match.
+	 * Unlike state keys it depends on the order of the rules.
+	 */
+	public static long gameKey(List<Gdl> description) {
+		long key = 0;
+		for (Gdl gdl : description)
+			key = mix(key ^ stringKey(gdl.toString()));
+		return key;
+	}
+	
+	/*
+	 * FNV-1a over the characters, then mixed so that similar strings get
+	 * unrelated keys
+	 */
+	private static long stringKey(String s) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			hash ^= s.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+	
+	/*
+	 * The finalizer of SplitMix64
+	 */
+	private static long mix(long x) {
+		x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+		x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+		return x ^ (x >>> 31);
+	}
 }
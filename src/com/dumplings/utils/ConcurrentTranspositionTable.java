@@ -0,0 +1,105 @@
+package com.dumplings.utils;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A TranspositionTable that several search threads can share without locks.
+ * Instead of the key, a slot holds the key XOR the entry, so a reader can
+ * tell whether the entry it read belongs to the key it read. An entry torn
+ * by a concurrent store fails that test and is taken as a miss. Racing
+ * stores to one bucket may lose an entry, which a cache can afford.
+ *
+ * The slots are AtomicLongArrays rather than long[], as the JVM only
+ * guarantees that a volatile long is read or written in one piece and that
+ * a store by one thread is ever seen by another.
+ */
+public class ConcurrentTranspositionTable extends TranspositionTable {
+	/* Key XOR entry of every slot */
+	private final AtomicLongArray checks;
+	private final AtomicLongArray entries;
+
+	public ConcurrentTranspositionTable(int megabytes) {
+		super(megabytes, 1 << 29);
+		checks = new AtomicLongArray(numSlots());
+		entries = new AtomicLongArray(numSlots());
+	}
+
+	@Override
+	public long probe(long key) {
+		int slot = ((int) key & mask) << 1;
+		for (int i = slot; i < slot + 2; i++) {
+			long entry = entries.get(i);
+			if (entry != 0 && (checks.get(i) ^ entry) == key)
+				return entry;
+		}
+		return MISSING;
+	}
+
+	@Override
+	protected void put(long key, long entry) {
+		int slot = ((int) key & mask) << 1;
+		long first = entries.get(slot), second = entries.get(slot + 1);
+		if (first != 0 && (checks.get(slot) ^ first) == key) {
+			if (!replaces(entry, first))
+				return;
+		} else if (second != 0 && (checks.get(slot + 1) ^ second) == key) {
+			if (!replaces(entry, second))
+				return;
+			slot++;
+		} else if (priority(second) < priority(first)) {
+			slot++;
+		}
+		setSlot(slot, key, entry);
+	}
+
+	/**
+	 * Reads the check and the entry of every slot once, so the key is never
+	 * made up from two different reads of the entry. The key of a slot torn
+	 * by a concurrent store is the XOR of two unrelated values, which in all
+	 * likelihood stands for no state.
+	 */
+	@Override
+	public void getProvenValues(Map<Long, Integer> values) {
+		for (int slot = 0; slot < entries.length(); slot++) {
+			long entry = entries.get(slot);
+			if (isProvenState(entry))
+				values.put(checks.get(slot) ^ entry, value(entry));
+		}
+	}
+
+	/**
+	 * Counts the entries, as there is no shared counter to keep up to date.
+	 */
+	@Override
+	public int size() {
+		int size = 0;
+		for (int slot = 0; slot < entries.length(); slot++) {
+			if (entries.get(slot) != 0)
+				size++;
+		}
+		return size;
+	}
+
+	@Override
+	protected long getKey(int slot) {
+		return checks.get(slot) ^ entries.get(slot);
+	}
+
+	@Override
+	protected long getEntry(int slot) {
+		return entries.get(slot);
+	}
+
+	@Override
+	protected void setSlot(int slot, long key, long entry) {
+		entries.set(slot, entry);
+		checks.set(slot, key ^ entry);
+	}
+
+	@Override
+	protected void clearSlots() {
+		for (int slot = 0; slot < entries.length(); slot++)
+			entries.set(slot, 0);
+	}
+}
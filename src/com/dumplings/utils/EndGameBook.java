@@ -0,0 +1,199 @@
+package com.dumplings.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import util.statemachine.Role;
+
+/**
+ * Proven values of states of one game for one role, kept on disk between
+ * matches so that the parts of a game solved in earlier matches do not have
+ * to be searched again. State keys (see Canonicalizer) are the same in every
+ * run, so they can be stored as they are.
+ *
+ * A book file holds the number of values, the keys in ascending order and
+ * then the values. It is memory-mapped and searched in place, so a large
+ * book costs neither loading time nor heap.
+ */
+public class EndGameBook {
+	/** Directory of the book files */
+	public static String directory = "books";
+
+	private final File file;
+	private Map<Long, Integer> values = null;
+
+	public EndGameBook(long gameKey, Role role) {
+		file = new File(directory, Long.toHexString(gameKey) + "." + role);
+	}
+
+	/**
+	 * The values of the book as a read-only map, e.g. for
+	 * PlayerStrategy.setExternalCache(), empty if there is no book yet.
+	 */
+	public Map<Long, Integer> load() {
+		values = Collections.emptyMap();
+		if (!file.exists())
+			return values;
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+				values = new MappedValues(buffer);
+			} finally {
+				in.close(); // the mapping stays valid
+			}
+			System.out.println("Loaded " + values.size() + " values from " + file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return values;
+	}
+
+	/**
+	 * Writes the book again with the loaded values, the proven exact entries
+	 * of table and scores, any of which may be null. scores must only hold
+	 * proven values.
+	 */
+	public void save(TranspositionTable table, Map<Long, Integer> scores) {
+		Map<Long, Integer> merged = new HashMap<Long, Integer>();
+		if (values != null)
+			merged.putAll(values);
+		if (table != null)
+			table.getProvenValues(merged);
+		if (scores != null)
+			merged.putAll(scores);
+
+		long[] keys = new long[merged.size()];
+		int n = 0;
+		for (Long key : merged.keySet())
+			keys[n++] = key;
+		Arrays.sort(keys);
+
+		File temp = new File(directory, file.getName() + ".tmp");
+		try {
+			file.getParentFile().mkdirs();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(keys.length);
+				for (long key : keys)
+					out.writeLong(key);
+				for (long key : keys)
+					out.writeInt(merged.get(key));
+			} finally {
+				out.close();
+			}
+			// Some platforms do not rename over an existing file
+			if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+				throw new IOException("Could not replace " + file);
+			System.out.println("Saved " + keys.length + " values to " + file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * A read-only map over a book file, found by binary search
+	 */
+	private static class MappedValues extends AbstractMap<Long, Integer> {
+		private final MappedByteBuffer buffer;
+		private final int size;
+
+		public MappedValues(MappedByteBuffer buffer) {
+			this.buffer = buffer;
+			size = buffer.getInt(0);
+		}
+
+		private long key(int i) {
+			return buffer.getLong(4 + 8 * i);
+		}
+
+		private int value(int i) {
+			return buffer.getInt(4 + 8 * size + 4 * i);
+		}
+
+		private int indexOf(Object o) {
+			if (!(o instanceof Long))
+				return -1;
+			long key = (Long) o;
+			int low = 0, high = size - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				long midKey = key(mid);
+				if (midKey < key)
+					low = mid + 1;
+				else if (midKey > key)
+					high = mid - 1;
+				else
+					return mid;
+			}
+			return -1;
+		}
+
+		@Override
+		public Integer get(Object key) {
+			int i = indexOf(key);
+			return (i < 0) ? null : value(i);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return indexOf(key) >= 0;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public Set<Map.Entry<Long, Integer>> entrySet() {
+			return new AbstractSet<Map.Entry<Long, Integer>>() {
+				@Override
+				public Iterator<Map.Entry<Long, Integer>> iterator() {
+					return new Iterator<Map.Entry<Long, Integer>>() {
+						private int i = 0;
+
+						@Override
+						public boolean hasNext() {
+							return i < size;
+						}
+
+						@Override
+						public Map.Entry<Long, Integer> next() {
+							if (i >= size)
+								throw new NoSuchElementException();
+							Map.Entry<Long, Integer> entry = new AbstractMap.SimpleImmutableEntry<Long, Integer>(key(i), value(i));
+							i++;
+							return entry;
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return size;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.dumplings.utils;
+
+import java.util.Arrays;
+
+/**
+ * A TranspositionTable in two long arrays on the Java heap.
+ */
+public class HeapTranspositionTable extends TranspositionTable {
+	private final long[] keys;
+	private final long[] entries;
+
+	public HeapTranspositionTable(int megabytes) {
+		super(megabytes, 1 << 29);
+		keys = new long[numSlots()];
+		entries = new long[numSlots()];
+	}
+
+	@Override
+	protected long getKey(int slot) {
+		return keys[slot];
+	}
+
+	@Override
+	protected long getEntry(int slot) {
+		return entries[slot];
+	}
+
+	@Override
+	protected void setSlot(int slot, long key, long entry) {
+		keys[slot] = key;
+		entries[slot] = entry;
+	}
+
+	@Override
+	protected void clearSlots() {
+		Arrays.fill(entries, 0);
+	}
+}
@@ -0,0 +1,41 @@
+package com.dumplings.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A TranspositionTable in a direct ByteBuffer, outside the Java heap. The
+ * garbage collector never scans or copies it, so even a large table does
+ * not make collections slower. At most 1 GB.
+ */
+public class OffHeapTranspositionTable extends TranspositionTable {
+	private final ByteBuffer buffer;
+
+	public OffHeapTranspositionTable(int megabytes) {
+		// 2^26 slots of 16 bytes, the largest power of two a ByteBuffer can hold
+		super(megabytes, 1 << 25);
+		buffer = ByteBuffer.allocateDirect(numSlots() * SLOT_SIZE).order(ByteOrder.nativeOrder());
+	}
+
+	@Override
+	protected long getKey(int slot) {
+		return buffer.getLong(slot * SLOT_SIZE);
+	}
+
+	@Override
+	protected long getEntry(int slot) {
+		return buffer.getLong(slot * SLOT_SIZE + 8);
+	}
+
+	@Override
+	protected void setSlot(int slot, long key, long entry) {
+		buffer.putLong(slot * SLOT_SIZE, key);
+		buffer.putLong(slot * SLOT_SIZE + 8, entry);
+	}
+
+	@Override
+	protected void clearSlots() {
+		for (int slot = 0; slot < numSlots(); slot++)
+			buffer.putLong(slot * SLOT_SIZE + 8, 0);
+	}
+}
@@ -0,0 +1,221 @@
+package com.dumplings.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small DPLL solver for formulas in conjunctive normal form: unit
+ * propagation with two watched literals per clause and chronological
+ * backtracking, no clause learning. Good enough for the cones of propnet
+ * formulas, whose gate variables all follow from the source variables by
+ * propagation.
+ *
+ * Variables are numbered from 1, a literal is a variable or its negation.
+ * Variables are branched on in the order they were created, false first.
+ */
+public class SatSolver {
+	private int numVariables = 0;
+	private List<int[]> clauses = new ArrayList<int[]>();
+	private boolean trivialConflict = false;
+
+	/* Search state, set up by solve() */
+	private byte[] values;			// per variable: 0 unassigned, 1 true, -1 false
+	private int[] trail;
+	private int trailSize;
+	private int propagated;
+	private int[][] watches;		// per literal index, the clauses watching it
+	private int[] numWatches;
+	private int[][] clauseArray;
+
+	public int newVariable() {
+		return ++numVariables;
+	}
+
+	public int getNumVariables() {
+		return numVariables;
+	}
+
+	public void addClause(int... literals) {
+		// Drop repeated literals, and the whole clause if it has both x and -x
+		int[] clause = new int[literals.length];
+		int size = 0;
+		for (int literal : literals) {
+			boolean repeated = false;
+			for (int i = 0; i < size; i++) {
+				if (clause[i] == -literal)
+					return;
+				if (clause[i] == literal)
+					repeated = true;
+			}
+			if (!repeated)
+				clause[size++] = literal;
+		}
+
+		if (size == 0) {
+			trivialConflict = true;
+		} else {
+			int[] trimmed = new int[size];
+			System.arraycopy(clause, 0, trimmed, 0, size);
+			clauses.add(trimmed);
+		}
+	}
+
+	/**
+	 * @return TRUE if the clauses are satisfiable, FALSE if not, null if the
+	 *         deadline passed before either was shown
+	 */
+	public Boolean solve(long deadline) {
+		if (trivialConflict)
+			return false;
+
+		values = new byte[numVariables + 1];
+		trail = new int[numVariables];
+		trailSize = 0;
+		propagated = 0;
+		watches = new int[2 * numVariables + 2][];
+		numWatches = new int[2 * numVariables + 2];
+		clauseArray = clauses.toArray(new int[clauses.size()][]);
+		for (int i = 0; i < clauseArray.length; i++) {
+			int[] clause = clauseArray[i];
+			if (clause.length == 1) {
+				if (isFalse(clause[0]))
+					return false;
+				if (!isTrue(clause[0]))
+					assign(clause[0]);
+			} else {
+				watch(clause[0], i);
+				watch(clause[1], i);
+			}
+		}
+
+		/* decisions[l] is the literal decided at level l + 1, levels[l] where its trail starts */
+		int[] decisions = new int[numVariables];
+		int[] levels = new int[numVariables];
+		boolean[] flipped = new boolean[numVariables];
+		int level = 0;
+		int nextVariable = 1;
+		int steps = 0;
+
+		while (true) {
+			if (++steps % 256 == 0 && System.currentTimeMillis() > deadline)
+				return null;
+
+			if (!propagate()) {
+				// Undo levels whose both branches failed, then flip the last decision
+				while (level > 0 && flipped[level - 1]) {
+					level--;
+					undo(levels[level]);
+				}
+				if (level == 0)
+					return false;
+				int decision = decisions[level - 1];
+				undo(levels[level - 1]);
+				decisions[level - 1] = -decision;
+				flipped[level - 1] = true;
+				assign(-decision);
+				nextVariable = 1;
+				continue;
+			}
+
+			while (nextVariable <= numVariables && values[nextVariable] != 0)
+				nextVariable++;
+			if (nextVariable > numVariables)
+				return true;
+
+			levels[level] = trailSize;
+			decisions[level] = -nextVariable;
+			flipped[level] = false;
+			level++;
+			assign(-nextVariable);
+		}
+	}
+
+	private boolean propagate() {
+		while (propagated < trailSize) {
+			// Every clause watching the literal that just became false
+			int falseLiteral = -trail[propagated++];
+			int index = literalIndex(falseLiteral);
+			int[] list = watches[index];
+			int count = numWatches[index];
+			int kept = 0;
+			boolean conflict = false;
+			for (int w = 0; w < count; w++) {
+				int c = list[w];
+				if (conflict) {
+					list[kept++] = c;
+					continue;
+				}
+				int[] clause = clauseArray[c];
+				if (clause[0] == falseLiteral) {
+					clause[0] = clause[1];
+					clause[1] = falseLiteral;
+				}
+				if (isTrue(clause[0])) {
+					list[kept++] = c;
+					continue;
+				}
+				boolean moved = false;
+				for (int k = 2; k < clause.length; k++) {
+					if (!isFalse(clause[k])) {
+						clause[1] = clause[k];
+						clause[k] = falseLiteral;
+						watch(clause[1], c);
+						moved = true;
+						break;
+					}
+				}
+				if (moved)
+					continue;
+				list[kept++] = c;
+				if (isFalse(clause[0]))
+					conflict = true;
+				else
+					assign(clause[0]);
+			}
+			numWatches[index] = kept;
+			if (conflict)
+				return false;
+		}
+		return true;
+	}
+
+	private void assign(int literal) {
+		values[Math.abs(literal)] = (byte) (literal > 0 ? 1 : -1);
+		trail[trailSize++] = literal;
+	}
+
+	private void undo(int size) {
+		while (trailSize > size)
+			values[Math.abs(trail[--trailSize])] = 0;
+		propagated = trailSize;
+	}
+
+	private boolean isTrue(int literal) {
+		byte value = values[Math.abs(literal)];
+		return literal > 0 ? value == 1 : value == -1;
+	}
+
+	private boolean isFalse(int literal) {
+		byte value = values[Math.abs(literal)];
+		return literal > 0 ? value == -1 : value == 1;
+	}
+
+	private void watch(int literal, int clause) {
+		int index = literalIndex(literal);
+		int[] list = watches[index];
+		if (list == null) {
+			list = new int[4];
+			watches[index] = list;
+		} else if (numWatches[index] == list.length) {
+			int[] larger = new int[list.length * 2];
+			System.arraycopy(list, 0, larger, 0, list.length);
+			list = larger;
+			watches[index] = list;
+		}
+		list[numWatches[index]++] = clause;
+	}
+
+	private static int literalIndex(int literal) {
+		return literal > 0 ? 2 * literal : 2 * -literal + 1;
+	}
+}
@@ -0,0 +1,283 @@
+package com.dumplings.utils;
+
+import java.util.Map;
+
+/**
+ * A hash table of fixed size from 64 bit keys (see Canonicalizer) to search
+ * results, so a long match cannot run out of memory the way unbounded maps
+ * of states do. The table is an array of buckets of two slots, indexed by
+ * the low bits of the key. Every entry is packed into one long:
+ *
+ *   bits  0-15  value + 32768
+ *   bits 16-23  depth searched below the entry, PROVEN if it does not matter
+ *   bits 24-25  bound type, EXACT, LOWER or UPPER
+ *   bits 26-41  index of the best move, NO_MOVE if there is none
+ *   bits 42-49  generation of the search that stored it
+ *   bit  50     set in every entry, so an empty slot is 0
+ *   bit  51     set in entries of states (max nodes), see storeState()
+ *
+ * When a bucket is full, the entry from an older generation, or else the
+ * one searched less deep, is replaced. An entry for the same key is only
+ * replaced by one at least as deep or from a newer generation, and a proven
+ * one only by another proven one. Subclasses decide where the slots
+ * are kept. Not thread safe, see ConcurrentTranspositionTable.
+ */
+public abstract class TranspositionTable {
+	public static final int DEFAULT_SIZE_MB = 32;
+
+	public static final int EXACT = 0;
+	/** The value is at least the stored one */
+	public static final int LOWER = 1;
+	/** The value is at most the stored one */
+	public static final int UPPER = 2;
+
+	/** Depth of values that hold whatever the search depth, e.g. from terminal states only */
+	public static final int PROVEN = 255;
+	public static final int NO_MOVE = 0xFFFF;
+	public static final int MIN_VALUE = -32768, MAX_VALUE = 32767;
+	/** Returned by probe() for keys that are not in the table */
+	public static final long MISSING = 0;
+
+	private static final int DEPTH_SHIFT = 16;
+	private static final int BOUND_SHIFT = 24;
+	private static final int MOVE_SHIFT = 26;
+	private static final int GENERATION_SHIFT = 42;
+	private static final long USED = 1L << 50;
+	private static final long STATE = 1L << 51;
+	/* Bytes per slot, a key and an entry */
+	protected static final int SLOT_SIZE = 16;
+
+	/* Number of buckets - 1 */
+	protected final int mask;
+	/* Volatile, as the searches sharing a ConcurrentTranspositionTable all read it */
+	protected volatile int generation = 0;
+	protected int size = 0;
+
+	/**
+	 * @param maxBuckets the most buckets the subclass can hold
+	 */
+	protected TranspositionTable(int megabytes, int maxBuckets) {
+		long slots = Math.max(((long) megabytes << 20) / SLOT_SIZE, 2);
+		mask = Integer.highestOneBit((int) Math.min(slots / 2, maxBuckets)) - 1;
+	}
+
+	/**
+	 * The number of slots the subclass has to provide.
+	 */
+	protected int numSlots() {
+		return 2 * (mask + 1);
+	}
+
+	protected abstract long getKey(int slot);
+
+	protected abstract long getEntry(int slot);
+
+	protected abstract void setSlot(int slot, long key, long entry);
+
+	/**
+	 * Sets the entry of every slot to 0.
+	 */
+	protected abstract void clearSlots();
+
+	/**
+	 * The entry stored for key, MISSING if there is none. Use the static
+	 * accessors to unpack it.
+	 */
+	public long probe(long key) {
+		int slot = ((int) key & mask) << 1;
+		long entry = getEntry(slot);
+		if (entry != 0 && getKey(slot) == key)
+			return entry;
+		entry = getEntry(slot + 1);
+		if (entry != 0 && getKey(slot + 1) == key)
+			return entry;
+		return MISSING;
+	}
+
+	/**
+	 * Stores a search result for key, replacing the one for the same key
+	 * unless that one is proven or deeper (see above). Values outside
+	 * [MIN_VALUE, MAX_VALUE] are not stored.
+	 *
+	 * @param depth depth searched below the entry, capped at PROVEN
+	 * @param bestMove index of the best move, or NO_MOVE
+	 */
+	public void store(long key, int value, int depth, int bound, int bestMove) {
+		if (value < MIN_VALUE || value > MAX_VALUE)
+			return;
+		put(key, pack(value, depth, bound, bestMove));
+	}
+
+	/**
+	 * Same as store(), for the value of a state to the player, i.e. of a max
+	 * node. Only these entries are exported by getProvenValues(), the keys
+	 * of min nodes (state XOR move) could collide with the key of a state.
+	 */
+	public void storeState(long key, int value, int depth, int bound, int bestMove) {
+		if (value < MIN_VALUE || value > MAX_VALUE)
+			return;
+		put(key, pack(value, depth, bound, bestMove) | STATE);
+	}
+
+	/**
+	 * Puts entry in the bucket of key, in the slot of key if it has one and
+	 * replaces() allows it, else in the one with the lower priority.
+	 */
+	protected void put(long key, long entry) {
+		int slot = ((int) key & mask) << 1;
+		long first = getEntry(slot), second = getEntry(slot + 1);
+		if (first != 0 && getKey(slot) == key) {
+			if (!replaces(entry, first))
+				return;
+		} else if (second != 0 && getKey(slot + 1) == key) {
+			if (!replaces(entry, second))
+				return;
+			slot++;
+		} else if (priority(second) < priority(first)) {
+			slot++;
+		}
+		if (getEntry(slot) == 0)
+			size++;
+		setSlot(slot, key, entry);
+	}
+
+	/*
+	 * Whether entry may replace old, stored for the same key: a proven entry
+	 * only by another proven one, else one from an earlier search or not
+	 * searched deeper than entry
+	 */
+	protected static boolean replaces(long entry, long old) {
+		if (isProven(old) && !isProven(entry))
+			return false;
+		return generation(entry) != generation(old) || depth(entry) >= depth(old);
+	}
+
+	private long pack(int value, int depth, int bound, int bestMove) {
+		return (value - MIN_VALUE)
+				| ((long) Math.min(Math.max(depth, 0), PROVEN) << DEPTH_SHIFT)
+				| ((long) bound << BOUND_SHIFT)
+				| ((long) (bestMove & NO_MOVE) << MOVE_SHIFT)
+				| ((long) generation << GENERATION_SHIFT)
+				| USED;
+	}
+
+	/*
+	 * Entries with a lower priority are replaced first
+	 */
+	protected int priority(long entry) {
+		if (entry == 0)
+			return -1;
+		return (generation(entry) == generation ? PROVEN + 1 : 0) + depth(entry);
+	}
+
+	/**
+	 * Starts a new search, so that the entries of the previous ones are
+	 * replaced first.
+	 */
+	public void nextGeneration() {
+		generation = (generation + 1) & 0xFF;
+	}
+
+	public void clear() {
+		clearSlots();
+		size = 0;
+	}
+
+	/**
+	 * Puts the value of every proven exact state entry (see storeState())
+	 * into values, e.g. to keep them in an EndGameBook.
+	 */
+	public void getProvenValues(Map<Long, Integer> values) {
+		for (int slot = 0; slot < numSlots(); slot++) {
+			long entry = getEntry(slot);
+			if (isProvenState(entry))
+				values.put(getKey(slot), value(entry));
+		}
+	}
+
+	/*
+	 * Whether getProvenValues() exports entry
+	 */
+	protected static boolean isProvenState(long entry) {
+		return isState(entry) && isProven(entry) && bound(entry) == EXACT;
+	}
+	
+	/**
+	 * The number of entries in the table.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The bound type of a value that a search with the window (alpha, beta)
+	 * returned: below the window it is an upper bound, above a lower bound.
+	 */
+	public static int boundType(int value, int alpha, int beta) {
+		if (value <= alpha)
+			return UPPER;
+		if (value >= beta)
+			return LOWER;
+		return EXACT;
+	}
+
+	/**
+	 * Whether entry settles a search with the window (alpha, beta), because
+	 * it is exact or a bound outside the window.
+	 */
+	public static boolean isCutoff(long entry, int alpha, int beta) {
+		return isCutoff(entry, 0, alpha, beta);
+	}
+
+	/**
+	 * Like isCutoff(entry, alpha, beta), for a search that has to look at
+	 * least depth moves ahead.
+	 */
+	public static boolean isCutoff(long entry, int depth, int alpha, int beta) {
+		if (entry == MISSING || depth(entry) < depth)
+			return false;
+		switch (bound(entry)) {
+		case EXACT:
+			return true;
+		case LOWER:
+			return value(entry) >= beta;
+		default:
+			return value(entry) <= alpha;
+		}
+	}
+
+	public static int value(long entry) {
+		return (int) (entry & 0xFFFF) + MIN_VALUE;
+	}
+
+	public static int depth(long entry) {
+		return (int) (entry >>> DEPTH_SHIFT) & 0xFF;
+	}
+
+	/**
+	 * Whether the value of entry holds at any depth, i.e. it does not
+	 * depend on heuristics.
+	 */
+	public static boolean isProven(long entry) {
+		return depth(entry) == PROVEN;
+	}
+
+	/**
+	 * Whether entry was stored with storeState().
+	 */
+	public static boolean isState(long entry) {
+		return (entry & STATE) != 0;
+	}
+
+	public static int bound(long entry) {
+		return (int) (entry >>> BOUND_SHIFT) & 0x3;
+	}
+
+	public static int bestMove(long entry) {
+		return (int) (entry >>> MOVE_SHIFT) & NO_MOVE;
+	}
+
+	public static int generation(long entry) {
+		return (int) (entry >>> GENERATION_SHIFT) & 0xFF;
+	}
+}